@@ -0,0 +1,66 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.generation.ChunkMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lookups of every chunk in a square around the origin, the access pattern of the streaming and the neighbour
+ * resolution, in ChunkMap against a HashMap with boxed keys.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkMapBenchmark {
+
+    @Param({"8", "32"})
+    public int radius;
+
+    private final ChunkMap<Object> chunkMap = new ChunkMap<>();
+    private final Map<Long, Object> hashMap = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        for (long x = -radius; x <= radius; x++) {
+            for (long z = -radius; z <= radius; z++) {
+                Object chunk = new Object();
+                chunkMap.put(ChunkMap.key(x, z), chunk);
+                hashMap.put(ChunkMap.key(x, z), chunk);
+            }
+        }
+    }
+
+    @Benchmark
+    public int chunkMapGet() {
+        int found = 0;
+
+        for (long x = -radius; x <= radius; x++) {
+            for (long z = -radius; z <= radius; z++) {
+                if (chunkMap.get(x, z) != null)
+                    found++;
+            }
+        }
+
+        return found;
+    }
+
+    @Benchmark
+    public int hashMapGet() {
+        int found = 0;
+
+        for (long x = -radius; x <= radius; x++) {
+            for (long z = -radius; z <= radius; z++) {
+                if (hashMap.get(ChunkMap.key(x, z)) != null)
+                    found++;
+            }
+        }
+
+        return found;
+    }
+}
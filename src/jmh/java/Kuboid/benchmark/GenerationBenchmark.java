@@ -0,0 +1,35 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.generation.Chunk;
+import Kuboid.manager.generation.TerrainGenerator;
+import Kuboid.manager.utils.SimplexNoise;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Generation of a single chunk, walking along a row so every call samples new noise
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerationBenchmark {
+
+    @Param({"16", "32", "48"})
+    public int chunkSize;
+
+    private TerrainGenerator generator;
+    private long chunkX;
+
+    @Setup
+    public void setup() {
+        SimplexNoise.setSeed(42);
+        generator = new TerrainGenerator(chunkSize, -5);
+    }
+
+    @Benchmark
+    public Chunk generateChunk() {
+        return generator.generateChunk(chunkX++, 0);
+    }
+}
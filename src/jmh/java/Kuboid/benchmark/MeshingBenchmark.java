@@ -0,0 +1,93 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.generation.Chunk;
+import Kuboid.manager.generation.ChunkMesh;
+import Kuboid.manager.generation.TerrainGenerator;
+import Kuboid.manager.utils.SimplexNoise;
+import Kuboid.manager.voxel.VoxelType;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Meshing of a single chunk across chunk sizes and fill patterns:
+ *  - terrain: a chunk made by the terrain generator, the usual case.
+ *  - solid: the lowest FILL_HEIGHT layers full, only the outer faces are visible.
+ *  - checkerboard: every other voxel in the same layers, the worst case with all the faces visible.
+ *  - random: the same layers filled at random with half of the voxels.
+ * The mesh owns native memory, it's released after every invocation.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshingBenchmark {
+
+    private static final int FILL_HEIGHT = 32;
+
+    @Param({"16", "32", "48"})
+    public int chunkSize;
+
+    @Param({"terrain", "solid", "checkerboard", "random"})
+    public String fill;
+
+    @Param({"false", "true"})
+    public boolean greedy;
+
+    @Param({"true"})
+    public boolean packed;
+
+    private Chunk chunk;
+    private ChunkMesh mesh;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        chunk = createChunk(chunkSize, fill);
+    }
+
+    static Chunk createChunk(int chunkSize, String fill) {
+        if (fill.equals("terrain")) {
+            SimplexNoise.setSeed(42);
+            return new TerrainGenerator(chunkSize, -5).generateChunk(0, 0);
+        }
+
+        Chunk chunk = new Chunk(new Vector3f(), chunkSize);
+        Random random = new Random(42);
+
+        for (int y = 0; y < FILL_HEIGHT; y++) {
+            for (int z = 0; z < chunkSize; z++) {
+                for (int x = 0; x < chunkSize; x++) {
+                    boolean solid = switch (fill) {
+                        case "solid" -> true;
+                        case "checkerboard" -> ((x + y + z) & 1) == 0;
+                        case "random" -> random.nextBoolean();
+                        default -> throw new IllegalArgumentException("Unknown fill pattern " + fill);
+                    };
+
+                    if (solid)
+                        chunk.set(x, y, z, y == FILL_HEIGHT - 1 ? VoxelType.GRASS : VoxelType.DIRT);
+                }
+            }
+        }
+
+        return chunk;
+    }
+
+    @Benchmark
+    public int buildMesh() {
+        mesh = new ChunkMesh(chunk, null, greedy, packed);
+        return mesh.getVertexCount();
+    }
+
+    @TearDown(Level.Invocation)
+    public void release() {
+        if (mesh != null)
+            mesh.cleanup();
+
+        mesh = null;
+    }
+}
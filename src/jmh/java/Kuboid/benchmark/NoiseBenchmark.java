@@ -0,0 +1,65 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.utils.SimplexNoise;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Simplex noise sampled over a grid the size of a chunk column layer, with the lowest frequency used by the terrain
+ * generator. The 3D version samples the same grid on a single layer so both report the cost per chunk layer.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoiseBenchmark {
+
+    private static final double FREQUENCY = 0.01;
+
+    @Param({"16", "48"})
+    public int size;
+
+    private double[] grid;
+
+    @Setup
+    public void setup() {
+        SimplexNoise.setSeed(42);
+        grid = new double[size * size];
+    }
+
+    @Benchmark
+    public double noise2D() {
+        double sum = 0;
+
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++)
+                sum += SimplexNoise.noise(FREQUENCY * x, FREQUENCY * z);
+        }
+
+        return sum;
+    }
+
+    //The same points as noise2D filled in a single call, the grid is cleared first since addNoise adds to it
+    @Benchmark
+    public double[] noise2DBatched() {
+        Arrays.fill(grid, 0);
+        SimplexNoise.addNoise(grid, size, size, 0, 0, FREQUENCY, 1);
+        return grid;
+    }
+
+    @Benchmark
+    public double noise3D() {
+        double sum = 0;
+
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++)
+                sum += SimplexNoise.noise(FREQUENCY * x, 0.5, FREQUENCY * z);
+        }
+
+        return sum;
+    }
+}
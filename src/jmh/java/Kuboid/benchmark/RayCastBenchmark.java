@@ -0,0 +1,72 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.generation.Chunk;
+import Kuboid.manager.generation.TerrainGenerator;
+import Kuboid.manager.utils.RayCast;
+import Kuboid.manager.utils.SimplexNoise;
+import Kuboid.manager.voxel.Voxel;
+import org.joml.Vector3f;
+import org.joml.Vector3i;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Ray casts against the world positions of a generated area, the same list Terrain.getActiveBlockPositions hands to
+ * RayCast in the game. The ray starts above the center of the area looking down at an angle so it hits the surface.
+ * Building the RayCast is measured too because the game creates a new one, copying the positions, for every cast.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RayCastBenchmark {
+
+    @Param({"16", "48"})
+    public int chunkSize;
+
+    @Param({"1", "3"})
+    public int chunksPerAxis;
+
+    private List<Vector3f> worldPositions;
+    private Vector3f origin;
+    private Vector3f direction;
+    private RayCast rayCast;
+
+    @Setup
+    public void setup() {
+        SimplexNoise.setSeed(42);
+        TerrainGenerator generator = new TerrainGenerator(chunkSize, -5);
+        worldPositions = new ArrayList<>();
+        int top = 0;
+
+        for (int x = 0; x < chunksPerAxis; x++) {
+            for (int z = 0; z < chunksPerAxis; z++) {
+                Chunk chunk = generator.generateChunk(x, z);
+                top = Math.max(top, Chunk.MIN_HEIGHT + chunk.getHeight());
+
+                for (Voxel voxel : chunk.getVoxels())
+                    worldPositions.add(new Vector3f(voxel.origin).add(chunk.getOrigin()));
+            }
+        }
+
+        float center = (chunksPerAxis * chunkSize) / 2f;
+        origin = new Vector3f(center, top, center);
+        direction = new Vector3f(0.3f, -1f, 0.2f).normalize();
+        rayCast = new RayCast(origin, direction, 100, worldPositions);
+    }
+
+    @Benchmark
+    public Vector3i cast() {
+        return rayCast.cast();
+    }
+
+    @Benchmark
+    public Vector3i createAndCast() {
+        return new RayCast(origin, direction, 100, worldPositions).cast();
+    }
+}
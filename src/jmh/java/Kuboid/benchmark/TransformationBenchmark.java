@@ -0,0 +1,37 @@
+package Kuboid.benchmark;
+
+import Kuboid.manager.entity.Entity;
+import Kuboid.manager.model.Model;
+import Kuboid.manager.utils.Transformation;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Transformation matrix of a chunk entity as built per draw, allocating a new matrix against reusing the renderer's one.
+ * Run it with "gradle jmh --args='TransformationBenchmark -prof gc'" to see the bytes allocated per call, the test
+ * TransformationTest checks that the reused one doesn't allocate.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformationBenchmark {
+
+    private final Entity entity = new Entity(new Model(0, 0), new Vector3f(48, 0, -96), new Vector3f(0, 0, 0), 1);
+    private final Matrix4f matrix = new Matrix4f();
+
+    @Benchmark
+    public Matrix4f allocating() {
+        return Transformation.createTransformationMatrix(entity);
+    }
+
+    @Benchmark
+    public Matrix4f reused() {
+        return Transformation.createTransformationMatrix(entity, matrix);
+    }
+}
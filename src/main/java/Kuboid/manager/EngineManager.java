@@ -1,5 +1,6 @@
 package Kuboid.manager;
 
+import Kuboid.manager.utils.Profiler;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import test.Launcher;
@@ -9,9 +10,18 @@ import static org.lwjgl.glfw.GLFW.glfwTerminate;
 
 public class EngineManager {
 
-    public static final float MAX_FPS = 10000;
+    public static final int DEFAULT_TARGET_FPS = 144;
     public static final double TICKS = 30;
     public static final double NANOSECOND = 1000000000L;
+    public static final int MAX_UPDATES_PER_FRAME = 5;
+    //The frame limiter stops sleeping this close to the end of the frame (ns)
+    private static final long SLEEP_MARGIN = 2_000_000L;
+
+    private int targetFps = DEFAULT_TARGET_FPS;
+
+    private static final Profiler.Scope INPUT_SCOPE = Profiler.scope("input");
+    private static final Profiler.Scope UPDATE_SCOPE = Profiler.scope("update");
+    private static final Profiler.Scope RENDER_SCOPE = Profiler.scope("render");
 
     private static int fps;
 
@@ -41,47 +51,93 @@ public class EngineManager {
         run();
     }
 
+    /*
+     * Fixed timestep loop, the game is updated TICKS times per second no matter the frame rate. When a frame takes
+     * longer than a tick the missed ticks are run before the next render, up to MAX_UPDATES_PER_FRAME, after that the
+     * backlog is dropped so a long stall doesn't freeze the game catching up. The render gets the fraction of the next
+     * tick already elapsed to interpolate, and the frames are paced to targetFps sleeping instead of spinning.
+     * */
     public void run() throws Exception {
         this.isRunning = true;
-        long initialTime = System.nanoTime();
-        final double timeU = NANOSECOND / TICKS;
-        final double timeF = NANOSECOND / MAX_FPS;
-        double deltaU = 0, deltaF = 0;
-        int frames = 0;//, ticks = 0;
+        final long tickTime = (long) (NANOSECOND / TICKS);
+        long previousTime = System.nanoTime();
+        long accumulator = 0;
+        int frames = 0;
         long timer = System.currentTimeMillis();
 
         while (isRunning) {
+            long frameStart = System.nanoTime();
+            accumulator += frameStart - previousTime;
+            previousTime = frameStart;
 
-            long currentTime = System.nanoTime();
-            deltaU += (currentTime - initialTime) / timeU;
-            deltaF += (currentTime - initialTime) / timeF;
-            initialTime = currentTime;
-
-            if (deltaU >= 1) {
+            //Input is read once per frame, only when the game is going to be updated, like the updates it works in ticks
+            if (accumulator >= tickTime)
                 input();
-                update((float) deltaU);
-                //ticks++;
-                deltaU--;
-            }
 
-            if (deltaF >= 1) {
-                render();
-                frames++;
-                deltaF--;
+            int updates = 0;
+
+            while (accumulator >= tickTime && updates < MAX_UPDATES_PER_FRAME) {
+                update((float) (tickTime / NANOSECOND));
+                accumulator -= tickTime;
+                updates++;
             }
 
+            if (accumulator >= tickTime)
+                accumulator %= tickTime;
+
+            render((float) accumulator / tickTime);
+            frames++;
+
             if (System.currentTimeMillis() - timer > 1000) {
                 setFps(frames);
-                window.setTitle(TITLE + " FPS: " + getFps());
+                window.setTitle(TITLE + " FPS: " + getFps() + " | " + Profiler.getSummary());
                 frames = 0;
-                //ticks = 0;
                 timer += 1000;
             }
+
+            limitFrameRate(frameStart);
+
+            //Time from the start of this frame to the start of the next one, including the wait of the limiter
+            Profiler.endFrame(System.nanoTime() - frameStart);
         }
 
         cleanup();
     }
 
+    /*
+     * Sleeps most of the time left for the frame and yields for the last part, since the sleeps are not precise enough
+     * to hit the target on their own. Does nothing when the frame rate is unlimited.
+     * */
+    private void limitFrameRate(long frameStart) {
+        if (targetFps <= 0)
+            return;
+
+        long frameEnd = frameStart + (long) (NANOSECOND / targetFps);
+        long remaining;
+
+        while ((remaining = frameEnd - System.nanoTime()) > 0) {
+            if (remaining > SLEEP_MARGIN) {
+                try {
+                    Thread.sleep((remaining - SLEEP_MARGIN) / 1_000_000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    //0 or less to leave the frame rate unlimited
+    public void setTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
     private void stop() {
         if(!isRunning)
             return;
@@ -92,17 +148,24 @@ public class EngineManager {
         if (window.windowShouldClose())
             stop();
 
+        INPUT_SCOPE.begin();
         mouseInput.input();
         gameLogic.input();
+        INPUT_SCOPE.end();
     }
 
-    private void render() {
-        gameLogic.render();
+    private void render(float alpha) {
+        RENDER_SCOPE.begin();
+        gameLogic.render(alpha);
         window.update();
+        RENDER_SCOPE.end();
     }
 
+    //The interval is the length of a tick in seconds
     private void update(float interval) throws Exception {
+        UPDATE_SCOPE.begin();
         gameLogic.update(interval, mouseInput);
+        UPDATE_SCOPE.end();
     }
 
     private void cleanup() {
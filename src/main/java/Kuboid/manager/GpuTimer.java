@@ -0,0 +1,60 @@
+package Kuboid.manager;
+
+import Kuboid.manager.utils.Profiler;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+
+/*
+ * Measures the GPU time of a part of the frame with timer queries. The results are read some frames later, once they
+ * are available, so measuring never stalls the pipeline, and are added to the given profiler scope on the frame they
+ * are read.
+ * */
+public class GpuTimer {
+
+    private static final int QUERIES = 4;
+
+    private final Profiler.Scope scope;
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private int current;
+    private boolean measuring;
+
+    public GpuTimer(Profiler.Scope scope) {
+        this.scope = scope;
+
+        for (int i = 0; i < QUERIES; i++)
+            queries[i] = glGenQueries();
+    }
+
+    public void begin() {
+        for (int i = 0; i < QUERIES; i++) {
+            if (pending[i] && glGetQueryObjecti(queries[i], GL_QUERY_RESULT_AVAILABLE) != 0) {
+                scope.add(glGetQueryObjecti64(queries[i], GL_QUERY_RESULT));
+                pending[i] = false;
+            }
+        }
+
+        //All the queries are still in flight, this frame is not measured
+        measuring = !pending[current];
+
+        if (measuring)
+            glBeginQuery(GL_TIME_ELAPSED, queries[current]);
+    }
+
+    public void end() {
+        if (!measuring)
+            return;
+
+        measuring = false;
+        glEndQuery(GL_TIME_ELAPSED);
+        pending[current] = true;
+        current = (current + 1) % QUERIES;
+    }
+
+    public void cleanup() {
+        for (int query : queries)
+            glDeleteQueries(query);
+    }
+}
@@ -10,6 +10,11 @@ public interface ILogic {
 
     void render();
 
+    //Alpha is the fraction of the next update already elapsed (from 0 to 1), to interpolate the rendered state
+    default void render(float alpha) {
+        render();
+    }
+
     void cleanup();
 
 }
@@ -0,0 +1,274 @@
+package Kuboid.manager;
+
+import Kuboid.manager.entity.Entity;
+import Kuboid.manager.generation.MeshBuilder;
+import Kuboid.manager.model.Model;
+import Kuboid.manager.model.Texture;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+import static org.lwjgl.system.MemoryUtil.*;
+
+/*
+ * Packed chunk meshes sharing a single vertex buffer, so all of them can be drawn with one multi draw indirect call.
+ * The meshes are indexed with the shared quad index buffer bound by ObjectLoader, each draw starts at its first vertex
+ * through the base vertex of the command.
+ * Each model gets a range of vertices of the buffer from a first fit allocator, the free ranges are merged when
+ * released and the buffer grows (copying its content on the GPU) when no range is big enough.
+ *
+ * Every frame the renderer adds the visible models with addDraw and calls draw, which writes one indirect command per
+ * model. The command uses its draw index as base instance, so the instanced attribute 3 gives each draw the position
+ * of its entity, and the vertex shader offsets the chunk with it instead of using the transformation matrix.
+ * */
+public class ModelBatch {
+
+    public static final int OFFSET_ATTRIBUTE = 3;
+
+    private static final int VERTEX_SIZE = MeshBuilder.PACKED_VERTEX_SIZE;
+    private static final int INITIAL_VERTICES = 1 << 20;
+    //count, instanceCount, firstIndex, baseVertex, baseInstance
+    private static final int COMMAND_INTS = 5;
+
+    private final int vao;
+    private int vertexVbo;
+    private final int offsetVbo, indirectBuffer;
+    private int capacity;
+    private int usedVertices;
+
+    //Free ranges of the vertex buffer, first vertex to number of vertices
+    private final TreeMap<Integer, Integer> freeRanges = new TreeMap<>();
+
+    //Draws of the current frame
+    private IntBuffer commands;
+    private FloatBuffer offsets;
+    private int drawCount;
+    private Texture texture;
+    //Whether the renderer already has the batch in its list for this frame, even if all its draws were culled
+    private boolean queued;
+
+    public ModelBatch() {
+        vao = glGenVertexArrays();
+        glBindVertexArray(vao);
+
+        capacity = INITIAL_VERTICES;
+        vertexVbo = createVertexBuffer(capacity);
+        freeRanges.put(0, capacity);
+
+        offsetVbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, offsetVbo);
+        glVertexAttribPointer(OFFSET_ATTRIBUTE, 3, GL_FLOAT, false, 3 * Float.BYTES, 0);
+        glVertexAttribDivisor(OFFSET_ATTRIBUTE, 1);
+        glEnableVertexAttribArray(OFFSET_ATTRIBUTE);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        glBindVertexArray(0);
+
+        indirectBuffer = glGenBuffers();
+
+        commands = memAllocInt(256 * COMMAND_INTS);
+        offsets = memAllocFloat(256 * 3);
+    }
+
+    //Must be called with the vao bound, attribute 0 is the only one read from the vertex buffer
+    private int createVertexBuffer(int vertices) {
+        int vbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, (long) vertices * VERTEX_SIZE, GL_STATIC_DRAW);
+        glVertexAttribIPointer(0, 2, GL_UNSIGNED_INT, VERTEX_SIZE, 0);
+        glEnableVertexAttribArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        return vbo;
+    }
+
+    public void bind() {
+        glBindVertexArray(vao);
+    }
+
+    //The model gets the number of indices needed to draw its quads, like the rest of the indexed models
+    public Model allocate(ByteBuffer vertices, int vertexCount) {
+        int indexCount = (vertexCount / MeshBuilder.QUAD_VERTICES) * MeshBuilder.QUAD_INDICES.length;
+
+        if (vertexCount == 0)
+            return new Model(vao, 0, this, 0);
+
+        int first = allocateRange(vertexCount);
+
+        glBindBuffer(GL_ARRAY_BUFFER, vertexVbo);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) first * VERTEX_SIZE, vertices);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        usedVertices += vertexCount;
+        return new Model(vao, indexCount, this, first);
+    }
+
+    public void free(Model model) {
+        int first = model.getFirstVertex();
+        int count = (model.getVertexCount() / MeshBuilder.QUAD_INDICES.length) * MeshBuilder.QUAD_VERTICES;
+
+        if (count == 0)
+            return;
+
+        usedVertices -= count;
+
+        //Merges the range with the free ones right before and after it
+        Map.Entry<Integer, Integer> previous = freeRanges.floorEntry(first);
+        if (previous != null && previous.getKey() + previous.getValue() == first) {
+            first = previous.getKey();
+            count += previous.getValue();
+        }
+
+        Integer next = freeRanges.get(first + count);
+        if (next != null) {
+            freeRanges.remove(first + count);
+            count += next;
+        }
+
+        freeRanges.put(first, count);
+    }
+
+    private int allocateRange(int vertexCount) {
+        for (Map.Entry<Integer, Integer> range : freeRanges.entrySet()) {
+            int first = range.getKey();
+            int size = range.getValue();
+
+            if (size < vertexCount)
+                continue;
+
+            freeRanges.remove(first);
+
+            if (size > vertexCount)
+                freeRanges.put(first + vertexCount, size - vertexCount);
+
+            return first;
+        }
+
+        int newCapacity = capacity * 2;
+        while (newCapacity - capacity < vertexCount)
+            newCapacity *= 2;
+
+        grow(newCapacity);
+        return allocateRange(vertexCount);
+    }
+
+    //The models keep their ranges, the content of the old buffer is copied at the start of the new one
+    private void grow(int newCapacity) {
+        int oldVbo = vertexVbo;
+
+        glBindVertexArray(vao);
+        vertexVbo = createVertexBuffer(newCapacity);
+        glBindVertexArray(0);
+
+        glBindBuffer(GL_COPY_READ_BUFFER, oldVbo);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, vertexVbo);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, (long) capacity * VERTEX_SIZE);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        glDeleteBuffers(oldVbo);
+
+        //The new space is merged with the free range at the end of the buffer, if any
+        int first = capacity;
+        int count = newCapacity - capacity;
+        Map.Entry<Integer, Integer> last = freeRanges.lastEntry();
+
+        if (last != null && last.getKey() + last.getValue() == capacity) {
+            first = last.getKey();
+            count += last.getValue();
+        }
+
+        freeRanges.put(first, count);
+        capacity = newCapacity;
+    }
+
+    //Queues the model to be drawn in the next call to draw, at the position of the entity
+    public void addDraw(Model model, Entity entity) {
+        if (model.getVertexCount() == 0)
+            return;
+
+        if (!commands.hasRemaining()) {
+            commands = memRealloc(commands, commands.capacity() * 2);
+            offsets = memRealloc(offsets, offsets.capacity() * 2);
+        }
+
+        Vector3f pos = entity.getPos();
+
+        commands.put(model.getVertexCount()).put(1).put(0).put(model.getFirstVertex()).put(drawCount);
+        offsets.put(pos.x).put(pos.y).put(pos.z);
+
+        if (drawCount++ == 0)
+            texture = model.getTexture();
+    }
+
+    public int getDrawCount() {
+        return drawCount;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+
+    public void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    //Texture of the models queued this frame, all the models of a batch share the same one
+    public Texture getTexture() {
+        return texture;
+    }
+
+    //Draws the models queued this frame with a single call, the shader has to be bound already
+    public void draw() {
+        if (drawCount == 0)
+            return;
+
+        commands.flip();
+        offsets.flip();
+
+        glBindBuffer(GL_ARRAY_BUFFER, offsetVbo);
+        glBufferData(GL_ARRAY_BUFFER, offsets, GL_STREAM_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectBuffer);
+        glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_STREAM_DRAW);
+
+        glBindVertexArray(vao);
+        glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, drawCount, 0);
+        glBindVertexArray(0);
+
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+
+        commands.clear();
+        offsets.clear();
+        drawCount = 0;
+    }
+
+    public long getCapacityBytes() {
+        return (long) capacity * VERTEX_SIZE;
+    }
+
+    public long getUsedBytes() {
+        return (long) usedVertices * VERTEX_SIZE;
+    }
+
+    public void cleanup() {
+        glDeleteBuffers(vertexVbo);
+        glDeleteBuffers(offsetVbo);
+        glDeleteBuffers(indirectBuffer);
+        glDeleteVertexArrays(vao);
+
+        memFree(commands);
+        memFree(offsets);
+    }
+}
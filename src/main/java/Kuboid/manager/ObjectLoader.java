@@ -1,7 +1,9 @@
 package Kuboid.manager;
 
+import Kuboid.manager.generation.MeshBuilder;
 import Kuboid.manager.model.Model;
 import Kuboid.manager.utils.Utils;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
 
@@ -10,19 +12,33 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static Kuboid.manager.utils.Utils.storeDataInFloatBuffer;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.system.MemoryUtil.memFree;
 
 public class ObjectLoader {
 
-    private List<Integer> vaos = new ArrayList<>();
-    private List<Integer> vbos = new ArrayList<>();
+    private Set<Integer> vaos = new HashSet<>();
+    private Set<Integer> vbos = new HashSet<>();
     //private List<Integer> textures = new ArrayList<>();
     private HashMap<String, Integer> textures = new HashMap<String, Integer>();
+    //Buffers created for each vao, so a single model can be deleted
+    private HashMap<Integer, List<Integer>> vaoBuffers = new HashMap<>();
+    private int currentVao;
+    //Size of the data stored in each buffer, to keep track of the memory used by the live models
+    private HashMap<Integer, Long> bufferSizes = new HashMap<>();
+    private long bufferBytes;
+    //Shared buffer for the packed chunk meshes, created on the first batched model
+    private ModelBatch chunkBatch;
+    //Index buffer shared by all the chunk meshes, the same two triangles repeated for every quad
+    private int quadIndexBuffer;
+    private int quadIndexCapacity;
 
     public Model loadModel(float[] vertices, float[] uvs, int[] indices) {
         int id = createVAO();
@@ -30,7 +46,7 @@ public class ObjectLoader {
         storeDatainAttribList(0, 3, vertices);
         storeDatainAttribList(1, 2, uvs);
         unbind();
-        return new Model(id, indices.length);
+        return new Model(id, indices.length, true);
     }
 
     public Model loadModel(float[] vertices, float[] uvs) {
@@ -41,12 +57,102 @@ public class ObjectLoader {
         return new Model(id, vertices.length);
     }
 
+    //Voxel meshes in the packed format of ChunkMesh, two unsigned ints per vertex in a single attribute
+    public Model loadPackedModel(ByteBuffer vertices, int vertexCount) {
+        int id = createVAO();
+        bindQuadIndices(vertexCount);
+        storeVertexBuffer(vertices);
+        glVertexAttribIPointer(0, 2, GL_UNSIGNED_INT, MeshBuilder.PACKED_VERTEX_SIZE, 0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        unbind();
+        return new Model(id, quadIndexCount(vertexCount), true);
+    }
+
+    //Packed voxel meshes stored in the shared chunk batch, requires OpenGL 4.3 (see isBatchingSupported)
+    public Model loadBatchedModel(ByteBuffer vertices, int vertexCount) {
+        if (chunkBatch == null) {
+            chunkBatch = new ModelBatch();
+            chunkBatch.bind();
+            bindQuadIndices(0);
+            unbind();
+        }
+
+        //The batch vao already references the buffer, it only has to be big enough
+        ensureQuadIndices(vertexCount);
+
+        return chunkBatch.allocate(vertices, vertexCount);
+    }
+
+    public boolean isBatchingSupported() {
+        return GL.getCapabilities().OpenGL43;
+    }
+
+    //Voxel meshes in the float format of ChunkMesh, position, uvs and atlas tile interleaved
+    public Model loadInterleavedModel(ByteBuffer vertices, int vertexCount) {
+        int id = createVAO();
+        bindQuadIndices(vertexCount);
+        storeVertexBuffer(vertices);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, MeshBuilder.FLOAT_VERTEX_SIZE, 0);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, MeshBuilder.FLOAT_VERTEX_SIZE, 3 * Float.BYTES);
+        glVertexAttribPointer(2, 2, GL_FLOAT, false, MeshBuilder.FLOAT_VERTEX_SIZE, 5 * Float.BYTES);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        unbind();
+        return new Model(id, quadIndexCount(vertexCount), true);
+    }
+
+    private static int quadIndexCount(int vertexCount) {
+        return (vertexCount / MeshBuilder.QUAD_VERTICES) * MeshBuilder.QUAD_INDICES.length;
+    }
+
+    //Binds the shared quad index buffer to the current vao, it's not owned by the vao so deleteModel keeps it
+    private void bindQuadIndices(int vertexCount) {
+        ensureQuadIndices(vertexCount);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, quadIndexBuffer);
+    }
+
+    /*
+     * Grows the shared index buffer to cover meshes of the given number of vertices. The storage is replaced keeping the
+     * same buffer name so the vaos that already reference it see the new indices.
+     * */
+    private void ensureQuadIndices(int vertexCount) {
+        int quads = vertexCount / MeshBuilder.QUAD_VERTICES;
+
+        if (quadIndexBuffer != 0 && quads <= quadIndexCapacity)
+            return;
+
+        int capacity = Math.max(quadIndexCapacity, 4096);
+        while (capacity < quads)
+            capacity *= 2;
+
+        int[] indices = new int[capacity * MeshBuilder.QUAD_INDICES.length];
+
+        for (int quad = 0, i = 0; quad < capacity; quad++) {
+            for (int index : MeshBuilder.QUAD_INDICES)
+                indices[i++] = (quad * MeshBuilder.QUAD_VERTICES) + index;
+        }
+
+        if (quadIndexBuffer == 0)
+            quadIndexBuffer = glGenBuffers();
+        else
+            bufferBytes -= (long) quadIndexCapacity * MeshBuilder.QUAD_INDICES.length * Integer.BYTES;
+
+        //Bound as an array buffer so the element binding of the current vao is not changed
+        glBindBuffer(GL_ARRAY_BUFFER, quadIndexBuffer);
+        IntBuffer buffer = Utils.storeDataInIntBuffer(indices);
+        glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+        memFree(buffer);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        quadIndexCapacity = capacity;
+        bufferBytes += (long) indices.length * Integer.BYTES;
+    }
+
     public Model loadModel(float[] vertices, int[] indices) {
         int id = createVAO();
         storeIndicesBuffer(indices);
         storeDatainAttribList(0, 3, vertices);
         unbind();
-        return new Model(id, indices.length);
+        return new Model(id, indices.length, true);
     }
 
     public int loadTexture(String filename) throws Exception {
@@ -91,24 +197,87 @@ public class ObjectLoader {
     private int createVAO() {
         int id = glGenVertexArrays();
         vaos.add(id);
+        vaoBuffers.put(id, new ArrayList<>());
+        currentVao = id;
         glBindVertexArray(id);
         return id;
     }
 
-    private void storeIndicesBuffer(int[] indices) {
+    private int createVBO() {
         int vbo = glGenBuffers();
         vbos.add(vbo);
+        vaoBuffers.get(currentVao).add(vbo);
+        return vbo;
+    }
+
+    private void trackBufferSize(int vbo, long bytes) {
+        bufferSizes.put(vbo, bytes);
+        bufferBytes += bytes;
+    }
+
+    //Deletes the vao of the model and the buffers created with it, the model can't be rendered afterwards
+    public void deleteModel(Model model) {
+        if (model.getBatch() != null) {
+            model.getBatch().free(model);
+            return;
+        }
+
+        List<Integer> buffers = vaoBuffers.remove(model.getId());
+
+        //Already deleted, models built from another one share its vao
+        if (buffers == null)
+            return;
+
+        for (int vbo : buffers) {
+            glDeleteBuffers(vbo);
+            vbos.remove(vbo);
+
+            Long bytes = bufferSizes.remove(vbo);
+            if (bytes != null)
+                bufferBytes -= bytes;
+        }
+
+        glDeleteVertexArrays(model.getId());
+        vaos.remove(model.getId());
+    }
+
+    public int getModelCount() {
+        return vaos.size();
+    }
+
+    public int getBufferCount() {
+        return vbos.size();
+    }
+
+    //Bytes of vertex and index data stored in the live buffers, textures are not included
+    public long getBufferBytes() {
+        return bufferBytes + ((chunkBatch != null) ? chunkBatch.getCapacityBytes() : 0);
+    }
+
+    private void storeIndicesBuffer(int[] indices) {
+        int vbo = createVBO();
         glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vbo);
         IntBuffer buffer = Utils.storeDataInIntBuffer(indices);
         glBufferData(GL_ELEMENT_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+        trackBufferSize(vbo, (long) indices.length * Integer.BYTES);
+        memFree(buffer);
+    }
+
+    //Leaves the buffer bound so the attributes can be set up, the data is owned by the caller
+    private void storeVertexBuffer(ByteBuffer data) {
+        int vbo = createVBO();
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+        trackBufferSize(vbo, data.remaining());
     }
 
     private void storeDatainAttribList(int attribNo, int vertexCount, float[] data) {
-        int vbo = glGenBuffers();
-        vbos.add(vbo);
+        int vbo = createVBO();
         glBindBuffer(GL_ARRAY_BUFFER, vbo);
         FloatBuffer buffer = storeDataInFloatBuffer(data);
         glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+        trackBufferSize(vbo, (long) data.length * Float.BYTES);
+        memFree(buffer);
         glVertexAttribPointer(attribNo, vertexCount, GL_FLOAT, false, 0, 0);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
 
@@ -125,5 +294,22 @@ public class ObjectLoader {
             glDeleteBuffers(vbo);
         for (int texture : textures.values())
             glDeleteTextures(texture);
+
+        if (chunkBatch != null) {
+            chunkBatch.cleanup();
+            chunkBatch = null;
+        }
+
+        if (quadIndexBuffer != 0) {
+            glDeleteBuffers(quadIndexBuffer);
+            quadIndexBuffer = 0;
+            quadIndexCapacity = 0;
+        }
+
+        vaos.clear();
+        vbos.clear();
+        vaoBuffers.clear();
+        bufferSizes.clear();
+        bufferBytes = 0;
     }
 }
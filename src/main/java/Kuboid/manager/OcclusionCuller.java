@@ -0,0 +1,199 @@
+package Kuboid.manager;
+
+import Kuboid.manager.entity.Entity;
+import Kuboid.manager.model.Model;
+import Kuboid.manager.utils.Utils;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL33.GL_ANY_SAMPLES_PASSED;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+/*
+ * Occlusion culling with hardware queries. After the visible models are drawn the bounding box of every model inside
+ * the frustum is rasterized against the depth buffer, without writing colour or depth, inside an occlusion query. The
+ * result is read on a later frame, when it's already available so the CPU never waits for the GPU, and the models
+ * whose box didn't pass the depth test are skipped until a new query says otherwise. A model that comes into view
+ * from behind an occluder shows up a frame late.
+ * */
+public class OcclusionCuller {
+
+    //The boxes are grown so the faces of the model itself, lying on the box, can't hide it
+    private static final float BOUNDS_MARGIN = 1f;
+
+    private static final float[] CUBE = {
+            0, 0, 0, 1, 0, 0, 1, 1, 0, 1, 1, 0, 0, 1, 0, 0, 0, 0,
+            0, 0, 1, 1, 1, 1, 1, 0, 1, 1, 1, 1, 0, 0, 1, 0, 1, 1,
+            0, 0, 0, 0, 1, 1, 0, 0, 1, 0, 1, 1, 0, 0, 0, 0, 1, 0,
+            1, 0, 0, 1, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 1, 0, 0,
+            0, 0, 0, 0, 0, 1, 1, 0, 1, 1, 0, 1, 1, 0, 0, 0, 0, 0,
+            0, 1, 0, 1, 1, 1, 0, 1, 1, 1, 1, 1, 0, 1, 0, 1, 1, 0
+    };
+
+    private static class Query {
+        final int id = glGenQueries();
+        boolean pending;
+        boolean visible = true;
+        long lastFrame;
+        float minX, minY, minZ, maxX, maxY, maxZ;
+    }
+
+    private ShaderManager shader;
+    private int transformationUniform, projectionUniform, viewUniform;
+    private int cubeVao, cubeVbo;
+
+    private final Map<Model, Query> queries = new HashMap<>();
+    //Models inside the frustum this frame, their boxes are queried at the end of the frame
+    private final List<Query> tracked = new ArrayList<>();
+    private final Matrix4f boxMatrix = new Matrix4f();
+    private long frame;
+
+    public void init() throws Exception {
+        shader = new ShaderManager();
+        shader.createVertexShader(Utils.loadResource("/shaders/vertexBounds.vs"));
+        shader.createFragmentShader(Utils.loadResource("/shaders/fragmentBounds.fs"));
+        shader.link();
+
+        transformationUniform = shader.createUniform("transformationMatrix");
+        projectionUniform = shader.createUniform("projectionMatrix");
+        viewUniform = shader.createUniform("viewMatrix");
+
+        cubeVao = glGenVertexArrays();
+        glBindVertexArray(cubeVao);
+
+        cubeVbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, cubeVbo);
+        FloatBuffer buffer = Utils.storeDataInFloatBuffer(CUBE);
+        glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+        memFree(buffer);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        glBindVertexArray(0);
+    }
+
+    public void beginFrame() {
+        frame++;
+        tracked.clear();
+    }
+
+    /*
+     * Registers a model that passed the frustum test this frame and returns whether the last query finished for it
+     * proved it hidden. Only the position and scale of the entity are applied to the bounds.
+     * */
+    public boolean isOccluded(Model model, Entity entity) {
+        Query query = queries.get(model);
+
+        if (query == null) {
+            query = new Query();
+            queries.put(model, query);
+        }
+
+        if (query.pending && glGetQueryObjecti(query.id, GL_QUERY_RESULT_AVAILABLE) != 0) {
+            query.visible = glGetQueryObjecti(query.id, GL_QUERY_RESULT) != 0;
+            query.pending = false;
+        }
+
+        Vector3f pos = entity.getPos();
+        Vector3f min = model.getBoundsMin();
+        Vector3f max = model.getBoundsMax();
+        float scale = entity.getScale();
+
+        query.minX = pos.x + (min.x * scale) - BOUNDS_MARGIN;
+        query.minY = pos.y + (min.y * scale) - BOUNDS_MARGIN;
+        query.minZ = pos.z + (min.z * scale) - BOUNDS_MARGIN;
+        query.maxX = pos.x + (max.x * scale) + BOUNDS_MARGIN;
+        query.maxY = pos.y + (max.y * scale) + BOUNDS_MARGIN;
+        query.maxZ = pos.z + (max.z * scale) + BOUNDS_MARGIN;
+
+        if (query.lastFrame != frame) {
+            query.lastFrame = frame;
+            tracked.add(query);
+        }
+
+        return !query.visible;
+    }
+
+    //Issues the queries of the models tracked this frame, must be called after the visible models are drawn
+    public void endFrame(Matrix4f projectionMatrix, Matrix4f viewMatrix, Vector3f camPos) {
+        shader.bind();
+        shader.setUniform(projectionUniform, projectionMatrix);
+        shader.setUniform(viewUniform, viewMatrix);
+
+        glColorMask(false, false, false, false);
+        glDepthMask(false);
+        glBindVertexArray(cubeVao);
+        glEnableVertexAttribArray(0);
+
+        for (int i = 0; i < tracked.size(); i++) {
+            Query query = tracked.get(i);
+
+            if (query.pending)
+                continue;
+
+            //The faces of the box are behind the camera when it's inside, it's visible anyway
+            if (camPos.x >= query.minX && camPos.x <= query.maxX && camPos.y >= query.minY && camPos.y <= query.maxY
+                    && camPos.z >= query.minZ && camPos.z <= query.maxZ) {
+                query.visible = true;
+                continue;
+            }
+
+            boxMatrix.translation(query.minX, query.minY, query.minZ)
+                    .scale(query.maxX - query.minX, query.maxY - query.minY, query.maxZ - query.minZ);
+            shader.setUniform(transformationUniform, boxMatrix);
+
+            glBeginQuery(GL_ANY_SAMPLES_PASSED, query.id);
+            glDrawArrays(GL_TRIANGLES, 0, CUBE.length / 3);
+            glEndQuery(GL_ANY_SAMPLES_PASSED);
+            query.pending = true;
+        }
+
+        glDisableVertexAttribArray(0);
+        glBindVertexArray(0);
+        glDepthMask(true);
+        glColorMask(true, true, true, true);
+        shader.unbind();
+
+        //Models that were not rendered this frame have been replaced, unloaded or left the frustum
+        if (queries.size() == tracked.size())
+            return;
+
+        Iterator<Query> iterator = queries.values().iterator();
+
+        while (iterator.hasNext()) {
+            Query query = iterator.next();
+
+            if (query.lastFrame != frame) {
+                glDeleteQueries(query.id);
+                iterator.remove();
+            }
+        }
+    }
+
+    public void cleanup() {
+        for (Query query : queries.values())
+            glDeleteQueries(query.id);
+
+        queries.clear();
+        tracked.clear();
+
+        glDeleteBuffers(cubeVbo);
+        glDeleteVertexArrays(cubeVao);
+
+        if (shader != null)
+            shader.cleanup();
+    }
+}
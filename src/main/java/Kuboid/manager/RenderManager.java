@@ -1,18 +1,25 @@
 package Kuboid.manager;
 
 import Kuboid.manager.entity.Entity;
+import Kuboid.manager.generation.Chunk;
+import Kuboid.manager.generation.Terrain;
 import Kuboid.manager.model.Model;
+import Kuboid.manager.model.Texture;
+import Kuboid.manager.utils.Profiler;
 import Kuboid.manager.utils.Transformation;
 import Kuboid.manager.utils.Utils;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
 import test.Launcher;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
-import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
 
@@ -23,6 +30,32 @@ public class RenderManager {
     private final Camera camera;
 
     private boolean isWireframe;
+    //Terrain drawn by the renderer, the shaders are built for the vertex format of its chunks
+    private Terrain terrain;
+
+    //Models with a bounding box are skipped when it's outside of the view frustum
+    private boolean frustumCulling = true;
+    private final FrustumIntersection frustum = new FrustumIntersection();
+    private final Matrix4f projectionView = new Matrix4f();
+    private final Matrix4f viewMatrix = new Matrix4f();
+    private final Matrix4f transformationMatrix = new Matrix4f();
+    //Uniform locations resolved once in init, so the render loop doesn't look them up by name
+    private int transformationUniform, projectionUniform, viewUniform, textureSamplerUniform;
+    private int boundTexture;
+    private int drawnCount, culledCount;
+
+    //Models hidden behind the terrain are skipped using the occlusion queries of the previous frames
+    private boolean occlusionCulling = true;
+    private OcclusionCuller occlusionCuller;
+    private int occludedCount;
+
+    //Batches with models queued this frame
+    private final List<ModelBatch> frameBatches = new ArrayList<>();
+    private static final Matrix4f IDENTITY = new Matrix4f();
+
+    //CPU time spent issuing the draws and GPU time spent executing them, the GPU one is read some frames later
+    private static final Profiler.Scope DRAW_SCOPE = Profiler.scope("render.draw");
+    private GpuTimer gpuTimer;
 
     public RenderManager(Camera camera, boolean isWireframe) {
         window = Launcher.getWindow();
@@ -33,66 +66,249 @@ public class RenderManager {
     public void init() throws Exception {
         shader = new ShaderManager();
         if (isWireframe) {
-            shader.createVertexShader(Utils.loadResource("/shaders/vertexWireframe.vs"));
+            shader.createVertexShader(configureVertexShader(Utils.loadResource("/shaders/vertexWireframe.vs")));
             shader.createFragmentShader(Utils.loadResource("/shaders/fragmentWireframe.fs"));
         } else {
-            shader.createVertexShader(Utils.loadResource("/shaders/vertexTexture.vs"));
+            shader.createVertexShader(configureVertexShader(Utils.loadResource("/shaders/vertexTexture.vs")));
             shader.createFragmentShader(Utils.loadResource("/shaders/fragmentTexture.fs"));
         }
         shader.link();
 
         if (!isWireframe)
-            shader.createUniform("textureSampler");
+            textureSamplerUniform = shader.createUniform("textureSampler");
+
+        transformationUniform = shader.createUniform("transformationMatrix");
+        projectionUniform = shader.createUniform("projectionMatrix");
+        viewUniform = shader.createUniform("viewMatrix");
+
+        //The boxes would be drawn as lines in wireframe mode and the lines don't hide anything
+        if (occlusionCulling && !isWireframe) {
+            occlusionCuller = new OcclusionCuller();
+            occlusionCuller.init();
+        }
+
+        gpuTimer = new GpuTimer(Profiler.scope("render.gpu"));
+    }
 
-        shader.createUniform("transformationMatrix");
-        shader.createUniform("projectionMatrix");
-        shader.createUniform("viewMatrix");
+    /*
+     * The vertex shaders read either the packed chunk vertices or the float attributes depending on this define, the
+     * packed ones also get the lowest layer of the chunks since their heights are stored from it.
+     * */
+    private String configureVertexShader(String shaderCode) {
+        if (!isPackedVertices())
+            return shaderCode;
 
+        int versionEnd = shaderCode.indexOf('\n') + 1;
+
+        return shaderCode.substring(0, versionEnd) + "#define PACKED_VERTICES\n"
+                + "#define MIN_HEIGHT (" + Chunk.MIN_HEIGHT + ".0)\n" + shaderCode.substring(versionEnd);
+    }
+
+    private boolean isPackedVertices() {
+        return terrain != null && terrain.isPackedVertices();
     }
 
+    /*
+     * The program and the uniforms shared by every draw (camera, projection and sampler) are set once per frame, inside
+     * the loop only the vao, the texture when it changes and the transformation of each entity are updated.
+     * */
     public void render(Map<Model, List<Entity>> entities) {
-        for (Model model : entities.keySet()) {
-            shader.bind();
+        DRAW_SCOPE.begin();
+        gpuTimer.begin();
+
+        drawnCount = 0;
+        culledCount = 0;
+        occludedCount = 0;
+
+        Transformation.getViewMatrix(camera, viewMatrix);
 
-            if (!isWireframe)
-                shader.setUniform("textureSampler", 0);
+        if (frustumCulling)
+            frustum.set(projectionView.set(window.getProjectionMatrix()).mul(viewMatrix));
+
+        if (occlusionCuller != null)
+            occlusionCuller.beginFrame();
+
+        shader.bind();
+        shader.setUniform(projectionUniform, window.getProjectionMatrix());
+        shader.setUniform(viewUniform, viewMatrix);
+
+        if (!isWireframe) {
+            shader.setUniform(textureSamplerUniform, 0);
+            glActiveTexture(GL_TEXTURE0);
+        }
 
-            //Should precompute this
-            shader.setUniform("projectionMatrix", window.getProjectionMatrix());
-            shader.setUniform("viewMatrix", Transformation.getViewMatrix(this.camera));
+        boundTexture = -1;
 
-            glBindVertexArray(model.getId());
-            glEnableVertexAttribArray(0);
+        for (Map.Entry<Model, List<Entity>> entry : entities.entrySet()) {
+            Model model = entry.getKey();
+            List<Entity> batch = entry.getValue();
 
-            if (!isWireframe) {
-                glEnableVertexAttribArray(1);
-                glActiveTexture(GL_TEXTURE0);
-                glBindTexture(GL_TEXTURE_2D, model.getTexture().getId());
+            //Batched models are only queued here and drawn all together below
+            if (model.getBatch() != null) {
+                if (!model.getBatch().isQueued()) {
+                    model.getBatch().setQueued(true);
+                    frameBatches.add(model.getBatch());
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    Entity entity = batch.get(i);
+
+                    if (isVisible(model, entity, batch.size()))
+                        model.getBatch().addDraw(model, entity);
+                }
+
+                continue;
             }
 
-            List<Entity> batch = entities.get(model);
+            boolean vaoBound = false;
+
+            //Indexed loops so the iteration doesn't allocate an iterator per model
+            for (int i = 0; i < batch.size(); i++) {
+                Entity entity = batch.get(i);
+
+                if (!isVisible(model, entity, batch.size()))
+                    continue;
 
-            for (Entity entity : batch) {
-                shader.setUniform("transformationMatrix", Transformation.createTransformationMatrix(entity));
+                //The vao and the texture are only bound for the models with something to draw
+                if (!vaoBound) {
+                    bindModel(model);
+                    vaoBound = true;
+                }
 
-                glDrawArrays(GL_TRIANGLES, 0, model.getVertexCount());
+                shader.setUniform(transformationUniform, Transformation.createTransformationMatrix(entity, transformationMatrix));
+
+                if (model.isIndexed())
+                    glDrawElements(GL_TRIANGLES, model.getVertexCount(), GL_UNSIGNED_INT, 0);
+                else
+                    glDrawArrays(GL_TRIANGLES, 0, model.getVertexCount());
             }
+        }
+
+        for (int i = 0; i < frameBatches.size(); i++)
+            renderBatch(frameBatches.get(i));
+
+        frameBatches.clear();
+
+        glBindVertexArray(0);
+        shader.unbind();
+
+        if (occlusionCuller != null)
+            occlusionCuller.endFrame(window.getProjectionMatrix(), viewMatrix, camera.getPosition());
+
+        gpuTimer.end();
+        DRAW_SCOPE.end();
+    }
+
+    //The enabled attributes are part of the state of the vao, so they stay enabled for the next frames
+    private void bindModel(Model model) {
+        glBindVertexArray(model.getId());
+        glEnableVertexAttribArray(0);
+
+        if (!isWireframe && !isPackedVertices()) {
+            glEnableVertexAttribArray(1);
+            glEnableVertexAttribArray(2);
+        }
+
+        bindTexture(model.getTexture());
+    }
+
+    private void bindTexture(Texture texture) {
+        if (isWireframe || texture.getId() == boundTexture)
+            return;
 
-            glDisableVertexAttribArray(0);
-            if (!isWireframe)
-                glDisableVertexAttribArray(1);
+        glBindTexture(GL_TEXTURE_2D, texture.getId());
+        boundTexture = texture.getId();
+    }
 
-            glBindVertexArray(0);
+    //The batch draws every model with the position of its entity, the transformation matrix is left as the identity
+    private void renderBatch(ModelBatch batch) {
+        batch.setQueued(false);
 
-            shader.unbind();
+        if (batch.getDrawCount() == 0)
+            return;
 
+        bindTexture(batch.getTexture());
+        shader.setUniform(transformationUniform, IDENTITY);
+
+        batch.draw();
+    }
+
+    //Applies frustum and occlusion culling to the entity and updates the counters
+    private boolean isVisible(Model model, Entity entity, int modelEntities) {
+        if (isCulled(model, entity)) {
+            culledCount++;
+            return false;
+        }
+
+        //Queries are kept per model, so only models drawn once like the chunks are tested
+        if (occlusionCuller != null && model.hasBounds() && modelEntities == 1 && occlusionCuller.isOccluded(model, entity)) {
+            occludedCount++;
+            return false;
         }
+
+        drawnCount++;
+        return true;
+    }
+
+    //Only the position and scale of the entity are applied to the bounds, rotated models are never culled
+    private boolean isCulled(Model model, Entity entity) {
+        if (!frustumCulling || !model.hasBounds())
+            return false;
+
+        Vector3f rotation = entity.getRotation();
+
+        if (rotation.x != 0 || rotation.y != 0 || rotation.z != 0)
+            return false;
+
+        Vector3f pos = entity.getPos();
+        Vector3f min = model.getBoundsMin();
+        Vector3f max = model.getBoundsMax();
+        float scale = entity.getScale();
+
+        return !frustum.testAab(pos.x + (min.x * scale), pos.y + (min.y * scale), pos.z + (min.z * scale),
+                pos.x + (max.x * scale), pos.y + (max.y * scale), pos.z + (max.z * scale));
+    }
+
+    //Entities drawn and skipped by frustum culling in the last frame
+    public int getDrawnCount() {
+        return drawnCount;
+    }
+
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    //Entities inside the frustum skipped because their last occlusion query didn't pass
+    public int getOccludedCount() {
+        return occludedCount;
+    }
+
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
+    }
+
+    //Takes effect on the next init or switchRenderer
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+    }
+
+    public boolean isFrustumCulling() {
+        return frustumCulling;
+    }
+
+    public void setFrustumCulling(boolean frustumCulling) {
+        this.frustumCulling = frustumCulling;
     }
 
     public void setWireframe(boolean wireframe) {
         isWireframe = wireframe;
     }
 
+    //Takes effect on the next init or switchRenderer
+    public void setTerrain(Terrain terrain) {
+        this.terrain = terrain;
+    }
+
     public void switchRenderer() throws Exception {
         clear();
         cleanup();
@@ -105,5 +321,15 @@ public class RenderManager {
 
     public void cleanup() {
         shader.cleanup();
+
+        if (occlusionCuller != null) {
+            occlusionCuller.cleanup();
+            occlusionCuller = null;
+        }
+
+        if (gpuTimer != null) {
+            gpuTimer.cleanup();
+            gpuTimer = null;
+        }
     }
 }
@@ -3,12 +3,13 @@ package Kuboid.manager;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
-import org.lwjgl.system.MemoryStack;
-
+import java.nio.FloatBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.system.MemoryUtil.memAllocFloat;
+import static org.lwjgl.system.MemoryUtil.memFree;
 
 public class ShaderManager {
 
@@ -16,6 +17,7 @@ public class ShaderManager {
     private int vertexShaderId, fragmentShaderId;
 
     private final Map<String, Integer> uniforms;
+    private final FloatBuffer matrixBuffer = memAllocFloat(16);
 
     public ShaderManager() throws Exception {
         programId = glCreateProgram();
@@ -27,43 +29,68 @@ public class ShaderManager {
 
     }
 
-    public void createUniform(String uniformName) throws Exception {
+    /*
+     * Returns the location of the uniform as a handle for the setUniform overloads that take an int, so the callers
+     * that set it every frame can skip the lookup by name.
+     * */
+    public int createUniform(String uniformName) throws Exception {
         int uniformLocation = glGetUniformLocation(programId, uniformName);
 
         if(uniformLocation < 0)
             throw new Exception("Could not find uniform " + uniformName);
 
         uniforms.put(uniformName, uniformLocation);
+
+        return uniformLocation;
     }
 
     public void setUniform(String uniformName, Matrix4f value) {
-        try(MemoryStack stack = MemoryStack.stackPush()) {
-            glUniformMatrix4fv(uniforms.get(uniformName), false, value.get(stack.mallocFloat(16)));
-        }
+        setUniform(uniforms.get(uniformName), value);
     }
 
     public void setUniform(String uniformName, Vector3f value) {
-        glUniform3f(uniforms.get(uniformName), value.x, value.y, value.z);
+        setUniform(uniforms.get(uniformName), value);
     }
 
     public void setUniform(String uniformName, Vector4f value) {
-        glUniform4f(uniforms.get(uniformName), value.x, value.y, value.z, value.w);
+        setUniform(uniforms.get(uniformName), value);
     }
 
     public void setUniform(String uniformName, boolean value) {
-        float res = 0;
-        if(value)
-            res = 1;
-
-        glUniform1f(uniforms.get(uniformName), res);
+        setUniform(uniforms.get(uniformName), value);
     }
 
     public void setUniform(String uniformName, int value) {
-        glUniform1i(uniforms.get(uniformName), value);
+        setUniform(uniforms.get(uniformName), value);
     }
 
     public void setUniform(String uniformName, float value) {
-        glUniform1f(uniforms.get(uniformName), value);
+        setUniform(uniforms.get(uniformName), value);
+    }
+
+    //The matrix is copied to a buffer reused by every call
+    public void setUniform(int uniform, Matrix4f value) {
+        glUniformMatrix4fv(uniform, false, value.get(matrixBuffer));
+    }
+
+    public void setUniform(int uniform, Vector3f value) {
+        glUniform3f(uniform, value.x, value.y, value.z);
+    }
+
+    public void setUniform(int uniform, Vector4f value) {
+        glUniform4f(uniform, value.x, value.y, value.z, value.w);
+    }
+
+    public void setUniform(int uniform, boolean value) {
+        glUniform1f(uniform, value ? 1 : 0);
+    }
+
+    public void setUniform(int uniform, int value) {
+        glUniform1i(uniform, value);
+    }
+
+    public void setUniform(int uniform, float value) {
+        glUniform1f(uniform, value);
     }
 
     public void createVertexShader(String shaderCode) throws Exception {
@@ -122,5 +149,7 @@ public class ShaderManager {
 
         if(programId != 0)
             glDeleteProgram(programId);
+
+        memFree(matrixBuffer);
     }
 }
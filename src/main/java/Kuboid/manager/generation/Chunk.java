@@ -1,29 +1,207 @@
 package Kuboid.manager.generation;
 
 import Kuboid.manager.voxel.Voxel;
+import Kuboid.manager.voxel.VoxelType;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Chunk {
-    private List<Voxel> voxels = new ArrayList<>();
+
+    /*
+     * Voxels are stored as palette indices instead of one object per voxel, the index 0 is reserved for air and any
+     * other value n maps to PALETTE[n - 1]. The chunk is split in vertical sections of SECTION_HEIGHT layers from
+     * MIN_HEIGHT up, each one a flat byte array laid out in layers (y, then z, then x) so a whole horizontal slice is
+     * contiguous in memory. A section is only allocated when a voxel is placed in it and dropped when it's emptied,
+     * a null section is all air, and there are as many sections as needed for the highest voxel placed.
+     * */
+    public static final short AIR = 0;
+    public static final int MIN_HEIGHT = -8;
+    public static final int SECTION_HEIGHT = 16;
+
+    private static final VoxelType[] PALETTE = VoxelType.values();
+    private static final byte[][] NO_SECTIONS = new byte[0][];
+
+    private byte[][] sections = NO_SECTIONS;
+    //Solid voxels in each section, the section is released when it reaches 0
+    private int[] sectionCounts = new int[0];
+    private final int chunkSize;
+    private final int layerSize;
+    private int voxelCount;
+
+    //Lazily built read-only view for the code that still works with Voxel objects, dropped on every modification
+    private List<Voxel> voxels;
     private Vector3f origin;
-    private long chunkSize;
 
-    public Chunk(List<Voxel> blocks, Vector3f origin, long chunkSize) {
-        this.voxels = blocks;
+    public Chunk(Vector3f origin, long chunkSize) {
         this.origin = origin;
-        this.chunkSize = chunkSize;
+        this.chunkSize = (int) chunkSize;
+        this.layerSize = this.chunkSize * this.chunkSize;
+    }
+
+    public Chunk(List<Voxel> blocks, Vector3f origin, long chunkSize) {
+        this(origin, chunkSize);
+        setVoxels(blocks);
+    }
+
+    public static short toId(VoxelType type) {
+        return (type == null) ? AIR : (short) (type.ordinal() + 1);
+    }
+
+    public static VoxelType toType(short id) {
+        return (id == AIR) ? null : PALETTE[id - 1];
+    }
+
+    //Whether a voxel can be placed at the position, there is no upper limit
+    public boolean contains(int x, int y, int z) {
+        return x >= 0 && x < chunkSize && z >= 0 && z < chunkSize && y >= MIN_HEIGHT;
+    }
+
+    //Layers from MIN_HEIGHT covered by the allocated sections, everything above is air
+    public int getHeight() {
+        return sections.length * SECTION_HEIGHT;
+    }
+
+    //Whether the section holding the layer y has no solid voxels, so whole sections can be skipped
+    public boolean isEmptySection(int y) {
+        int section = (y - MIN_HEIGHT) / SECTION_HEIGHT;
+        return y < MIN_HEIGHT || section >= sections.length || sections[section] == null;
+    }
+
+    private int index(int x, int y, int z) {
+        return (((y - MIN_HEIGHT) % SECTION_HEIGHT) * layerSize) + (z * chunkSize) + x;
+    }
+
+    //Positions outside the chunk are treated as air
+    public short getId(int x, int y, int z) {
+        if (!contains(x, y, z))
+            return AIR;
+
+        int section = (y - MIN_HEIGHT) / SECTION_HEIGHT;
+
+        if (section >= sections.length || sections[section] == null)
+            return AIR;
+
+        return sections[section][index(x, y, z)];
+    }
+
+    public VoxelType get(int x, int y, int z) {
+        return toType(getId(x, y, z));
+    }
+
+    public boolean isSolid(int x, int y, int z) {
+        return getId(x, y, z) != AIR;
+    }
+
+    public void set(int x, int y, int z, VoxelType type) {
+        if (!contains(x, y, z))
+            throw new IndexOutOfBoundsException("Voxel (" + x + ", " + y + ", " + z + ") is outside of the chunk");
+
+        short id = toId(type);
+        int section = (y - MIN_HEIGHT) / SECTION_HEIGHT;
+
+        if (section >= sections.length) {
+            if (id == AIR)
+                return;
+
+            sections = Arrays.copyOf(sections, section + 1);
+            sectionCounts = Arrays.copyOf(sectionCounts, section + 1);
+        }
+
+        byte[] blocks = sections[section];
+
+        if (blocks == null) {
+            if (id == AIR)
+                return;
+
+            blocks = new byte[layerSize * SECTION_HEIGHT];
+            sections[section] = blocks;
+        }
+
+        int i = index(x, y, z);
+        short previous = blocks[i];
+
+        if (previous == id)
+            return;
+
+        if (previous == AIR) {
+            voxelCount++;
+            sectionCounts[section]++;
+        } else if (id == AIR) {
+            voxelCount--;
+
+            if (--sectionCounts[section] == 0) {
+                sections[section] = null;
+                trimSections();
+                voxels = null;
+                return;
+            }
+        }
+
+        blocks[i] = (byte) id;
+        voxels = null;
+    }
+
+    //Drops the empty sections on top, so the height of the chunk follows its highest voxel
+    private void trimSections() {
+        int count = sections.length;
+
+        while (count > 0 && sections[count - 1] == null)
+            count--;
+
+        if (count < sections.length) {
+            sections = Arrays.copyOf(sections, count);
+            sectionCounts = Arrays.copyOf(sectionCounts, count);
+        }
+    }
+
+    public int getVoxelCount() {
+        return voxelCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
     }
 
     public List<Voxel> getVoxels() {
+        if (voxels == null) {
+            List<Voxel> aux = new ArrayList<>(voxelCount);
+
+            for (int y = MIN_HEIGHT; y < MIN_HEIGHT + getHeight(); y++) {
+                if (isEmptySection(y))
+                    continue;
+
+                byte[] blocks = sections[(y - MIN_HEIGHT) / SECTION_HEIGHT];
+
+                for (int z = 0; z < chunkSize; z++) {
+                    for (int x = 0; x < chunkSize; x++) {
+                        short id = blocks[index(x, y, z)];
+
+                        if (id != AIR)
+                            aux.add(new Voxel(x, y, z, toType(id)));
+                    }
+                }
+            }
+
+            voxels = Collections.unmodifiableList(aux);
+        }
+
         return voxels;
     }
 
     public void setVoxels(List<Voxel> voxels) {
-        this.voxels = voxels;
+        sections = NO_SECTIONS;
+        sectionCounts = new int[0];
+        voxelCount = 0;
+
+        for (Voxel voxel : voxels)
+            set((int) voxel.origin.x, (int) voxel.origin.y, (int) voxel.origin.z, voxel.type);
+
+        this.voxels = null;
     }
 
     public Vector3f getOrigin() {
@@ -0,0 +1,186 @@
+package Kuboid.manager.generation;
+
+import java.util.Arrays;
+
+/*
+ * Hash map from chunk coordinates to values, the coordinates are packed in a single long (x in the high half, z in
+ * the low one) and stored in a primitive array with open addressing and linear probing, so lookups don't box the key
+ * or allocate. Entries are removed by shifting back the ones that follow in their probe sequence instead of leaving
+ * tombstones, so the table doesn't degrade as chunks are loaded and unloaded while the camera moves.
+ *
+ * It's not thread safe, the callers have to synchronize the accesses.
+ * */
+public class ChunkMap<V> {
+
+    private static final int INITIAL_CAPACITY = 64;
+    //Resize when the table is more than 3/4 full
+    private static final int MAX_LOAD_NUM = 3, MAX_LOAD_DEN = 4;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public ChunkMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ChunkMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * MAX_LOAD_DEN / MAX_LOAD_NUM, 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public static long key(long chunkX, long chunkZ) {
+        return (chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static long keyX(long key) {
+        return key >> 32;
+    }
+
+    public static long keyZ(long key) {
+        return (int) key;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    //Mixes the bits of both coordinates so neighbouring chunks don't end in consecutive slots
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int i = slot(key);
+
+        while (values[i] != null) {
+            if (keys[i] == key)
+                return i;
+
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = find(key);
+        return (i < 0) ? null : (V) values[i];
+    }
+
+    public V get(long chunkX, long chunkZ) {
+        return get(key(chunkX, chunkZ));
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    //Null values are not allowed, an empty slot is a slot without value
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Null values are not allowed");
+
+        int i = slot(key);
+
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if (++size * MAX_LOAD_DEN > keys.length * MAX_LOAD_NUM)
+            resize(keys.length << 1);
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = find(key);
+
+        if (i < 0)
+            return null;
+
+        V previous = (V) values[i];
+        size--;
+
+        //Moves back the entries after the removed one that would not be found anymore with the slot empty
+        int gap = i;
+        int next = (gap + 1) & mask;
+
+        while (values[next] != null) {
+            int home = slot(keys[next]);
+
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        values[gap] = null;
+        return previous;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+
+            int j = slot(oldKeys[i]);
+
+            while (values[j] != null)
+                j = (j + 1) & mask;
+
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /*
+     * Slot based iteration without allocating an iterator, slots go from 0 to capacity() and the empty ones have a null
+     * value. Removing entries while iterating can move others to slots already visited.
+     * */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+}
@@ -1,182 +1,430 @@
 package Kuboid.manager.generation;
 
 import Kuboid.manager.model.VoxelModel;
-import Kuboid.manager.voxel.Vertex;
-import Kuboid.manager.voxel.Voxel;
 import Kuboid.manager.voxel.VoxelType;
+import org.joml.Vector2f;
 import org.joml.Vector3f;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.system.MemoryUtil.memFree;
 
 public class ChunkMesh {
 
-    private List<Vertex> vertices;
-    private List<Vector3f> usedPos;
+    //Faces in the order PX, NX, PY, NY, PZ, NZ
+    public static final int PX = 0, NX = 1, PY = 2, NY = 3, PZ = 4, NZ = 5;
+
+    private static final Vector3f[][] FACE_POS = {VoxelModel.PX_POS, VoxelModel.NX_POS, VoxelModel.PY_POS,
+            VoxelModel.NY_POS, VoxelModel.PZ_POS, VoxelModel.NZ_POS};
+    private static final Vector2f[][] FACE_UV = {VoxelModel.UV_PX, VoxelModel.UV_NX, VoxelModel.UV_PY,
+            VoxelModel.UV_NY, VoxelModel.UV_PZ, VoxelModel.UV_NZ};
+
+    //Axis perpendicular to each face (0 = x, 1 = y, 2 = z), the direction it points to, and the two axes of its plane
+    private static final int[] FACE_AXIS = {0, 0, 1, 1, 2, 2};
+    private static final int[] FACE_DIR = {1, -1, 1, -1, 1, -1};
+    private static final int[] FACE_U = {2, 2, 0, 0, 0, 0};
+    private static final int[] FACE_V = {1, 1, 2, 2, 1, 1};
+
+    //Corners of a quad in the same order as the faces of VoxelModel: top-left, bottom-left, bottom-right,
+    //bottom-right, top-right, top-left
+    private static final int[] CORNERS_U = {0, 0, 1, 1, 1, 0};
+    private static final int[] CORNERS_V = {1, 0, 0, 0, 1, 1};
+    //The four distinct corners of the quad (top-left, bottom-left, bottom-right and top-right), the two triangles are
+    //rebuilt from them by the shared quad index buffer, see MeshBuilder.QUAD_INDICES
+    private static final int[] QUAD_CORNERS = {0, 1, 2, 4};
+
+    /*
+     * Vertex data of the mesh in an off-heap buffer, four vertices per quad, in one of these two formats:
+     *
+     * Packed, two ints per vertex. The first one holds the corner of the voxel grid the vertex lies on (x,
+     * y - Chunk.MIN_HEIGHT and z as unsigned bytes) and the face in the highest byte, the second one holds the index
+     * of the tile in the texture atlas. The shader derives the position, the uvs and the normal from them.
+     *
+     * Floats, kept for debugging. Position, uvs local to the face (from 0 to the number of voxels it covers) and
+     * the origin of the tile in the atlas, interleaved. The fragment shader repeats the tile across the face so
+     * merged faces keep the texture of a single voxel.
+     * */
+    private ByteBuffer vertexData;
+    private int vertexCount;
+    //The packed corners go from 0 to the size of the chunk on each axis and are stored in a byte
+    public static final int MAX_PACKED_SIZE = 255;
+    //Lowest and highest corner of the mesh on the y axis, in chunk space, used for the bounding box of the chunk
+    private int minY, maxY;
 
-    private List<Float> positionsList;
-    private List<Float> normalsList;
-    private List<Float> uvsList;
+    public Chunk chunk;
 
-    public float[] positions, normals, uvs;
+    //Chunks adjacent to each face, null when they are not loaded, chunks span the whole height so PY and NY are unused
+    private final Chunk[] neighbours = new Chunk[6];
+    /*
+     * Lowest solid voxel of each column. Its bottom face is the underside of the world and is never emitted, even when
+     * there is air below down to MIN_HEIGHT, so the crust the generator leaves under the surface isn't drawn from
+     * below. Only that voxel is affected: the bottom faces of the voxels above it, like the ceiling of a cave or an
+     * overhang, are culled against the voxel under them as any other face.
+     * */
+    private int[] columnFloor;
 
-    public Chunk chunk;
+    private MeshBuilder builder;
+
+    private boolean greedy;
+    private boolean packed;
+    private boolean disposed;
 
     public ChunkMesh(Chunk chunk) {
-        vertices = new ArrayList<>();
-        usedPos = new ArrayList<>();
-        positionsList = new ArrayList<>();
-        normalsList = new ArrayList<>();
-        uvsList = new ArrayList<>();
-        this.chunk = chunk;
+        this(chunk, false);
+    }
 
-        usedPos = getUsedPositions(chunk.getVoxels());
+    public ChunkMesh(Chunk chunk, boolean greedy) {
+        this(chunk, null, greedy);
+    }
 
-        buildMesh();
-        populateList();
+    public ChunkMesh(Chunk chunk, Chunk[] neighbours, boolean greedy) {
+        this(chunk, neighbours, greedy, false);
     }
 
-    private List<Vector3f> getUsedPositions(List<Voxel> voxels) {
-        List<Vector3f> auxList = new ArrayList<>();
+    public ChunkMesh(Chunk chunk, Chunk[] neighbours, boolean greedy, boolean packed) {
+        if (packed)
+            checkPackedSize(chunk);
+
+        this.chunk = chunk;
+        this.greedy = greedy;
+        this.packed = packed;
 
-        for (Voxel voxel : voxels)
-            auxList.add(voxel.origin);
+        if (neighbours != null)
+            System.arraycopy(neighbours, 0, this.neighbours, 0, 6);
 
-        return auxList;
+        updateMesh();
     }
 
-    //Join both parts of the method by negating the condition on the first set of if statements and adding the k
-    //loops to them
+    /*
+     * Face visibility is resolved against the dense voxel store of the chunk, every neighbour lookup is a constant time
+     * array access so the cost of meshing grows linearly with the volume of the chunk. The faces on the borders are
+     * checked against the neighbouring chunks when they are loaded.
+     * */
     private void buildMesh() {
+        int chunkSize = chunk.getChunkSize();
 
-        for (int i = 0; i < chunk.getVoxels().size(); i++) {
-            Voxel voxelI = chunk.getVoxels().get(i);
-
-            //PX
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x + 1, voxelI.origin.y, voxelI.origin.z))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.PX_POS[k].x + voxelI.origin.x, VoxelModel.PX_POS[k].y + voxelI.origin.y, VoxelModel.PX_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_PX[(voxelI.type.ordinal() * 6) + k]));
-                }
+        for (int y = Chunk.MIN_HEIGHT; y < Chunk.MIN_HEIGHT + chunk.getHeight(); y++) {
+            //Sections without voxels have no faces
+            if (chunk.isEmptySection(y)) {
+                y += Chunk.SECTION_HEIGHT - 1;
+                continue;
             }
 
-            //NX
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x - 1, voxelI.origin.y, voxelI.origin.z))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.NX_POS[k].x + voxelI.origin.x, VoxelModel.NX_POS[k].y + voxelI.origin.y, VoxelModel.NX_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_NX[(voxelI.type.ordinal() * 6) + k]));
-                }
-            }
+            for (int z = 0; z < chunkSize; z++) {
+                for (int x = 0; x < chunkSize; x++) {
+                    VoxelType type = chunk.get(x, y, z);
 
-            //PY
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x, voxelI.origin.y + 1, voxelI.origin.z))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.PY_POS[k].x + voxelI.origin.x, VoxelModel.PY_POS[k].y + voxelI.origin.y, VoxelModel.PY_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_PY[(voxelI.type.ordinal() * 6) + k]));
-                }
-            }
+                    if (type == null)
+                        continue;
+
+                    //PX
+                    if (!isHidden(PX, x, y, z))
+                        addFace(PX, x, y, z, type);
 
-            //NY
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x, voxelI.origin.y - 1, voxelI.origin.z))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.NY_POS[k].x + voxelI.origin.x, VoxelModel.NY_POS[k].y + voxelI.origin.y, VoxelModel.NY_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_NY[(voxelI.type.ordinal() * 6) + k]));
+                    //NX
+                    if (!isHidden(NX, x, y, z))
+                        addFace(NX, x, y, z, type);
+
+                    //PY
+                    if (!isHidden(PY, x, y, z))
+                        addFace(PY, x, y, z, type);
+
+                    //NY
+                    if (!isHidden(NY, x, y, z))
+                        addFace(NY, x, y, z, type);
+
+                    //PZ
+                    if (!isHidden(PZ, x, y, z))
+                        addFace(PZ, x, y, z, type);
+
+                    //NZ
+                    if (!isHidden(NZ, x, y, z))
+                        addFace(NZ, x, y, z, type);
                 }
             }
+        }
+    }
+
+    /*
+     * Greedy meshing, for every slice of the chunk perpendicular to each face direction we build a mask with the type
+     * of the visible faces and then merge the adjacent faces of the same type into the biggest rectangles possible,
+     * first growing along the 'u' axis of the plane and then along the 'v' axis.
+     * */
+    private void buildGreedyMesh() {
+        int chunkSize = chunk.getChunkSize();
+
+        for (int face = 0; face < 6; face++) {
+            int d = FACE_AXIS[face], u = FACE_U[face], v = FACE_V[face];
+            int dimsD = dims(d), dimsU = dims(u), dimsV = dims(v);
+            short[] mask = builder.getMask(dimsU * dimsV);
+
+            for (int slice = 0; slice < dimsD; slice++) {
+                int n = 0;
+
+                for (int j = 0; j < dimsV; j++) {
+                    for (int i = 0; i < dimsU; i++) {
+                        int x = (d == 0) ? slice : (u == 0) ? i : j;
+                        int y = ((d == 1) ? slice : j) + Chunk.MIN_HEIGHT;
+                        int z = (d == 2) ? slice : (u == 2) ? i : j;
 
-            //PZ
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x, voxelI.origin.y, voxelI.origin.z + 1))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.PZ_POS[k].x + voxelI.origin.x, VoxelModel.PZ_POS[k].y + voxelI.origin.y, VoxelModel.PZ_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_PZ[(voxelI.type.ordinal() * 6) + k]));
+                        short id = chunk.getId(x, y, z);
+
+                        if (id != Chunk.AIR && isHidden(face, x, y, z))
+                            id = Chunk.AIR;
+
+                        mask[n++] = id;
+                    }
                 }
-            }
 
-            //NZ
-            if (!usedPos.contains(new Vector3f(voxelI.origin.x, voxelI.origin.y, voxelI.origin.z - 1))) {
-                for (int k = 0; k < 6; k++) {
-                    vertices.add(new Vertex(new Vector3f(VoxelModel.NZ_POS[k].x + voxelI.origin.x, VoxelModel.NZ_POS[k].y + voxelI.origin.y, VoxelModel.NZ_POS[k].z + voxelI.origin.z),
-                            VoxelModel.NORMALS[k],
-                            VoxelModel.UV_NZ[(voxelI.type.ordinal() * 6) + k]));
+                n = 0;
+
+                for (int j = 0; j < dimsV; j++) {
+                    for (int i = 0; i < dimsU; ) {
+                        short id = mask[n];
+
+                        if (id == Chunk.AIR) {
+                            i++;
+                            n++;
+                            continue;
+                        }
+
+                        int w = 1;
+                        while (i + w < dimsU && mask[n + w] == id)
+                            w++;
+
+                        int h = 1;
+                        grow:
+                        while (j + h < dimsV) {
+                            for (int k = 0; k < w; k++) {
+                                if (mask[n + k + (h * dimsU)] != id)
+                                    break grow;
+                            }
+                            h++;
+                        }
+
+                        addQuad(face, slice, i, j, w, h, Chunk.toType(id));
+
+                        for (int l = 0; l < h; l++) {
+                            for (int k = 0; k < w; k++)
+                                mask[n + k + (l * dimsU)] = Chunk.AIR;
+                        }
+
+                        i += w;
+                        n += w;
+                    }
                 }
             }
         }
-        usedPos.clear();
     }
 
-    //Could be improved
-    private void populateList() {
+    private int dims(int axis) {
+        return (axis == 1) ? chunk.getHeight() : chunk.getChunkSize();
+    }
+
+    //Checks if the given face of the voxel is covered by a solid voxel, in this chunk or in the neighbouring one
+    private boolean isHidden(int face, int x, int y, int z) {
+        int chunkSize = chunk.getChunkSize();
+
+        switch (face) {
+            case PX:
+                return (x + 1 < chunkSize) ? chunk.isSolid(x + 1, y, z) : isSolidNeighbour(PX, 0, y, z);
+            case NX:
+                return (x > 0) ? chunk.isSolid(x - 1, y, z) : isSolidNeighbour(NX, chunkSize - 1, y, z);
+            case PY:
+                return chunk.isSolid(x, y + 1, z);
+            case NY:
+                //The lowest voxel of the column has no bottom face (see columnFloor)
+                return chunk.isSolid(x, y - 1, z) || y <= columnFloor[(z * chunkSize) + x];
+            case PZ:
+                return (z + 1 < chunkSize) ? chunk.isSolid(x, y, z + 1) : isSolidNeighbour(PZ, x, y, 0);
+            default:
+                return (z > 0) ? chunk.isSolid(x, y, z - 1) : isSolidNeighbour(NZ, x, y, chunkSize - 1);
+        }
+    }
+
+    private boolean isSolidNeighbour(int face, int x, int y, int z) {
+        Chunk neighbour = neighbours[face];
+
+        return neighbour != null && neighbour.isSolid(x, y, z);
+    }
 
-        for (int i = 0; i < vertices.size(); i++) {
-            Vertex vertex = vertices.get(i);
+    private void updateColumnFloor() {
+        int chunkSize = chunk.getChunkSize();
 
-            positionsList.add(vertex.position.x);
-            positionsList.add(vertex.position.y);
-            positionsList.add(vertex.position.z);
+        columnFloor = builder.getColumns(chunkSize * chunkSize);
 
-            uvsList.add(vertex.uvs.x);
-            uvsList.add(vertex.uvs.y);
+        for (int z = 0; z < chunkSize; z++) {
+            for (int x = 0; x < chunkSize; x++) {
+                int y = Chunk.MIN_HEIGHT;
 
-            normalsList.add(vertex.normals.x);
-            normalsList.add(vertex.normals.y);
-            normalsList.add(vertex.normals.z);
+                while (y < Chunk.MIN_HEIGHT + chunk.getHeight() && !chunk.isSolid(x, y, z))
+                    y++;
 
+                columnFloor[(z * chunkSize) + x] = y;
+            }
         }
-        vertices.clear();
+    }
+
+    private void addFace(int face, int x, int y, int z, VoxelType type) {
+        Vector3f[] facePositions = FACE_POS[face];
+        Vector2f[] faceUVs = FACE_UV[face];
+        Vector2f tile = faceUVs[type.ordinal() * 6];
 
-        positions = new float[positionsList.size()];
-        normals = new float[normalsList.size()];
-        uvs = new float[uvsList.size()];
+        for (int k : QUAD_CORNERS) {
+            Vector2f uv = faceUVs[(type.ordinal() * 6) + k];
 
-        for (int i = 0; i < positionsList.size(); i++) {
-            positions[i] = positionsList.get(i);
+            //The positions of VoxelModel are centered on the voxel, the corners of the grid are at +-0.5
+            addVertex(face, type,
+                    x + Math.round(facePositions[k].x + 0.5f),
+                    y - Chunk.MIN_HEIGHT + Math.round(facePositions[k].y + 0.5f),
+                    z + Math.round(facePositions[k].z + 0.5f),
+                    (uv.x - tile.x) / VoxelModel.TILE_SIZE, (uv.y - tile.y) / VoxelModel.TILE_SIZE);
         }
+    }
+
+    //Adds a w*h quad that starts on the voxel (i, j) of the plane 'slice' of the given face
+    private void addQuad(int face, int slice, int i, int j, int w, int h, VoxelType type) {
+        int d = FACE_AXIS[face], u = FACE_U[face];
+        int sliceCorner = (FACE_DIR[face] > 0) ? slice + 1 : slice;
 
-        for (int i = 0; i < normalsList.size(); i++) {
-            normals[i] = normalsList.get(i);
+        for (int k : QUAD_CORNERS) {
+            int cornerU = i + (CORNERS_U[k] * w);
+            int cornerV = j + (CORNERS_V[k] * h);
+
+            int x = (d == 0) ? sliceCorner : (u == 0) ? cornerU : cornerV;
+            int y = (d == 1) ? sliceCorner : cornerV;
+            int z = (d == 2) ? sliceCorner : (u == 2) ? cornerU : cornerV;
+
+            addVertex(face, type, x, y, z, CORNERS_U[k] * w, (1 - CORNERS_V[k]) * h);
         }
+    }
+
+    //Writes a vertex placed on the corner (x, y - Chunk.MIN_HEIGHT, z) of the voxel grid
+    private void addVertex(int face, VoxelType type, int x, int y, int z, float u, float v) {
+        Vector2f tile = FACE_UV[face][type.ordinal() * 6];
+
+        minY = Math.min(minY, y + Chunk.MIN_HEIGHT);
+        maxY = Math.max(maxY, y + Chunk.MIN_HEIGHT);
+
+        if (packed) {
+            int tileIndex = Math.round(tile.x / VoxelModel.TILE_SIZE) + (Math.round(tile.y / VoxelModel.TILE_SIZE) * 16);
 
-        for (int i = 0; i < uvsList.size(); i++) {
-            uvs[i] = uvsList.get(i);
+            builder.putPacked((x & 0xFF) | ((y & 0xFF) << 8) | ((z & 0xFF) << 16) | (face << 24), tileIndex & 0xFF);
+        } else {
+            builder.putFloat(x - 0.5f, y + Chunk.MIN_HEIGHT - 0.5f, z - 0.5f, u, v, tile.x, tile.y);
         }
+    }
+
+    public synchronized void updateMesh() {
+        //The chunk was unloaded while waiting to be rebuilt
+        if (disposed)
+            return;
+
+        builder = MeshBuilder.get();
+        updateColumnFloor();
+
+        minY = Integer.MAX_VALUE;
+        maxY = Integer.MIN_VALUE;
+
+        if (greedy)
+            buildGreedyMesh();
+        else
+            buildMesh();
 
-        positionsList.clear();
-        uvsList.clear();
-        normalsList.clear();
+        if (vertexData != null)
+            memFree(vertexData);
 
+        vertexData = builder.finish();
+        vertexCount = builder.getVertexCount();
+
+        columnFloor = null;
+        builder = null;
     }
 
-    public void updateMesh() {
-        buildMesh();
+    //Vertex data in the format given by isPacked, the buffer is owned by the mesh and must not be freed by the caller
+    public ByteBuffer getVertexData() {
+        return vertexData;
     }
 
-    public void addVoxel(Vector3f position) {
-        List<Voxel> voxels = this.chunk.getVoxels();
-        voxels.add(new Voxel(position, VoxelType.DIRT));
+    //Four vertices per quad, drawn with MeshBuilder.QUAD_INDICES
+    public int getVertexCount() {
+        return vertexCount;
+    }
 
-        this.chunk.setVoxels(voxels);
+    public int getIndexCount() {
+        return (vertexCount / MeshBuilder.QUAD_VERTICES) * MeshBuilder.QUAD_INDICES.length;
     }
 
-    public void deleteVoxel(Vector3f position) {
-        List<Voxel> voxels = this.chunk.getVoxels();
-        int index = -1;
-        int i = 0;
+    /*
+     * Bounding box of the mesh relative to the origin of the chunk, the vertices are placed on the corners of the
+     * voxels which are centered on the integer coordinates. Horizontally the box covers the whole chunk and vertically
+     * from the lowest to the highest face built. Only valid when the mesh has vertices.
+     * */
+    public float getMinY() {
+        return minY - 0.5f;
+    }
 
-        while (index == -1 && i < (voxels.size() - 1)) {
+    public float getMaxY() {
+        return maxY - 0.5f;
+    }
 
-            if (voxels.get(i).origin.equals(position.x, position.y, position.z))
-                index = i;
+    public synchronized void cleanup() {
+        if (vertexData != null)
+            memFree(vertexData);
 
-            i++;
-        }
+        vertexData = null;
+        vertexCount = 0;
+        disposed = true;
+    }
+
+    public synchronized boolean isDisposed() {
+        return disposed;
+    }
 
-        voxels.remove(i);
+    public synchronized Chunk getNeighbour(int face) {
+        return neighbours[face];
+    }
+
+    public synchronized void setNeighbour(int face, Chunk neighbour) {
+        neighbours[face] = neighbour;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    public void setPacked(boolean packed) {
+        if (packed)
+            checkPackedSize(chunk);
+
+        this.packed = packed;
+    }
+
+    private static void checkPackedSize(Chunk chunk) {
+        if (chunk.getChunkSize() > MAX_PACKED_SIZE || chunk.getHeight() > MAX_PACKED_SIZE)
+            throw new IllegalArgumentException("Chunks of size " + chunk.getChunkSize() + " and height " + chunk.getHeight()
+                    + " don't fit in the packed vertex format, the maximum is " + MAX_PACKED_SIZE);
+    }
+
+    public boolean isGreedy() {
+        return greedy;
+    }
+
+    public void setGreedy(boolean greedy) {
+        this.greedy = greedy;
+    }
+
+    public void addVoxel(Vector3f position) {
+        if (!chunk.contains((int) position.x, (int) position.y, (int) position.z))
+            return;
+
+        chunk.set((int) position.x, (int) position.y, (int) position.z, VoxelType.DIRT);
+    }
+
+    public void deleteVoxel(Vector3f position) {
+        if (!chunk.contains((int) position.x, (int) position.y, (int) position.z))
+            return;
 
-        chunk.setVoxels(voxels);
+        chunk.set((int) position.x, (int) position.y, (int) position.z, null);
     }
 }
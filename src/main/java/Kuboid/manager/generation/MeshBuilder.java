@@ -0,0 +1,106 @@
+package Kuboid.manager.generation;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/*
+ * Growable off-heap vertex buffer used to mesh the chunks, there is one per thread and it's reused for every mesh
+ * built on that thread so meshing doesn't allocate on the Java heap. When a mesh is finished its vertices are copied
+ * into an exact-sized off-heap buffer that is handed to the upload step as it is, whoever owns that buffer has to
+ * release it with memFree.
+ * */
+public class MeshBuilder {
+
+    //Two unsigned ints per vertex, see ChunkMesh for the layout
+    public static final int PACKED_VERTEX_SIZE = 2 * Integer.BYTES;
+    //Position (3 floats), face uvs (2 floats) and atlas tile offset (2 floats) interleaved
+    public static final int FLOAT_VERTEX_SIZE = 7 * Float.BYTES;
+
+    //Meshes are made of quads of four vertices, drawn as two triangles with these indices
+    public static final int QUAD_VERTICES = 4;
+    public static final int[] QUAD_INDICES = {0, 1, 2, 2, 3, 0};
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<MeshBuilder> BUILDERS = ThreadLocal.withInitial(MeshBuilder::new);
+
+    private ByteBuffer buffer;
+    private int vertexCount;
+
+    //Scratch arrays reused between meshes
+    private short[] mask = new short[0];
+    private int[] columns = new int[0];
+
+    private MeshBuilder() {
+        buffer = memAlloc(INITIAL_CAPACITY);
+    }
+
+    //Returns the builder of the calling thread, empty and ready to be used
+    public static MeshBuilder get() {
+        MeshBuilder builder = BUILDERS.get();
+        builder.reset();
+        return builder;
+    }
+
+    //Frees the builder of the calling thread, should be called by the threads that mesh chunks before they finish
+    public static void release() {
+        MeshBuilder builder = BUILDERS.get();
+        memFree(builder.buffer);
+        builder.buffer = null;
+        BUILDERS.remove();
+    }
+
+    public void reset() {
+        buffer.clear();
+        vertexCount = 0;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes)
+            buffer = memRealloc(buffer, Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+    }
+
+    public void putPacked(int position, int tile) {
+        ensureCapacity(PACKED_VERTEX_SIZE);
+        buffer.putInt(position).putInt(tile);
+        vertexCount++;
+    }
+
+    public void putFloat(float x, float y, float z, float u, float v, float tileU, float tileV) {
+        ensureCapacity(FLOAT_VERTEX_SIZE);
+        buffer.putFloat(x).putFloat(y).putFloat(z).putFloat(u).putFloat(v).putFloat(tileU).putFloat(tileV);
+        vertexCount++;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    //Copies the vertices written so far into a new off-heap buffer owned by the caller
+    public ByteBuffer finish() {
+        int size = buffer.position();
+        ByteBuffer mesh = memAlloc(Math.max(size, 1));
+
+        buffer.flip();
+        memCopy(buffer, mesh);
+        mesh.limit(size);
+        buffer.clear();
+
+        return mesh;
+    }
+
+    public short[] getMask(int size) {
+        if (mask.length < size)
+            mask = new short[size];
+
+        return mask;
+    }
+
+    public int[] getColumns(int size) {
+        if (columns.length < size)
+            columns = new int[size];
+
+        return columns;
+    }
+}
@@ -5,12 +5,15 @@ import Kuboid.manager.entity.Entity;
 import Kuboid.manager.model.Model;
 import Kuboid.manager.model.Texture;
 import Kuboid.manager.utils.PerlinNoise;
+import Kuboid.manager.utils.Profiler;
 import Kuboid.manager.utils.SimplexNoise;
 import Kuboid.manager.voxel.Voxel;
 import Kuboid.manager.voxel.VoxelType;
 import org.joml.Vector3f;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.random.RandomGenerator;
 
 public class Terrain implements Runnable {
@@ -19,23 +22,77 @@ public class Terrain implements Runnable {
     private Model model, newModel;
     private Texture texture;
     private PerlinNoise generator;
-    private SimplexNoise simplexNoise;
+    private TerrainGenerator terrainGenerator;
 
     private long size;
-    private long index = 0;
     private long chunkSize, chunkDepth;
     private boolean plain;
     private boolean isWireframe;
     private boolean running = true;
     private Vector3f camPos;
-    private boolean rebuildMeshes = false;
-
-    private Map<Model, List<Entity>> entitiesMap = Collections.synchronizedMap(new HashMap<>());
-    private List<ChunkMesh> chunkMeshes = Collections.synchronizedList(new ArrayList<>());
+    private boolean greedyMeshing = false;
+    private boolean packedVertices = true;
+    //Packed meshes share a single buffer and are drawn with one multi draw call when the driver supports it
+    private boolean batchedRendering = true;
+
+    /*
+     * Entities handed to the renderer, kept up to date as the chunks are uploaded and unloaded instead of being built
+     * every frame. It's only filtered again when the camera moves to another chunk. Only used by the GL thread.
+     * */
+    private final Map<Model, List<Entity>> entitiesMap = new HashMap<>();
+    private long renderChunkX, renderChunkZ;
+    private boolean renderMapValid;
     private List<Chunk> activeChunks = Collections.synchronizedList(new ArrayList<>());
     private List<Vector3f> blockPositions = Collections.synchronizedList(new ArrayList<>());
-    private List<Entity> entities = Collections.synchronizedList(new ArrayList<>());
-    private List<Vector3f> usedPos = Collections.synchronizedList(new ArrayList<>());
+    //Chunks and their meshes by chunk coordinates, both guarded by chunkLock
+    private ChunkMap<Chunk> generatedChunks = new ChunkMap<>();
+    private ChunkMap<ChunkMesh> chunkMap = new ChunkMap<>();
+    private final Object chunkLock = new Object();
+    //Entity of every uploaded chunk, replacing or removing the one of a chunk doesn't go through the others
+    private Map<ChunkMesh, Entity> chunkEntities = Collections.synchronizedMap(new HashMap<>());
+
+    //Meshes built or rebuilt by the workers waiting to be uploaded by the GL thread
+    private Queue<ChunkMesh> uploadQueue = new ConcurrentLinkedQueue<>();
+    private Set<ChunkMesh> pendingUploads = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Meshes taken from the upload queue by the GL thread, nearest to the camera first. Every frame they are uploaded
+     * until the byte or the time budget is spent, at least one per frame so the world keeps loading at any frame rate.
+     * The order is rebuilt when the camera moves to another chunk.
+     * */
+    private PriorityQueue<ChunkMesh> readyMeshes = new PriorityQueue<>(Comparator.comparingDouble(this::uploadPriority));
+    private long uploadChunkX, uploadChunkZ;
+    private long uploadBudgetBytes = 4L * 1024 * 1024;
+    private long uploadBudgetNanos = 4_000_000L;
+
+    //Chunks removed from the world whose models have to be released by the GL thread
+    private Queue<ChunkMesh> unloadQueue = new ConcurrentLinkedQueue<>();
+
+    private ExecutorService workers;
+    private int workerCount = defaultWorkerCount();
+
+    /*
+     * Chunks are loaded while their center is within loadRadius chunks of the camera and unloaded once it gets
+     * further than unloadRadius, the gap between both keeps the chunks on the border from being loaded and unloaded
+     * over and over again when the camera moves back and forth.
+     * */
+    private float loadRadius, unloadRadius;
+    //Chunks handed to the workers or already loaded, guarded by chunkLock like the chunks themselves
+    private ChunkMap<Boolean> requestedChunks = new ChunkMap<>();
+    //Chunks modified since they were last meshed
+    private Set<ChunkMesh> dirtyMeshes = ConcurrentHashMap.newKeySet();
+    //Chunks handed to the workers and not finished yet, new ones are only requested when there is room
+    private AtomicInteger pendingChunks = new AtomicInteger();
+    private static final long STREAM_INTERVAL = 50;
+
+    //Time spent by the GL thread releasing and uploading chunks
+    private static final Profiler.Scope UPLOAD_SCOPE = Profiler.scope("terrain.upload");
+    //Time spent handing the render map to the renderer, filtering it again when the camera changes chunk
+    private static final Profiler.Scope RENDER_MAP_SCOPE = Profiler.scope("terrain.renderMap");
+
+    //Offsets of the chunks adjacent to each face of ChunkMesh and the face of the neighbour that faces back
+    private static final long[][] NEIGHBOUR_OFFSETS = {{1, 0}, {-1, 0}, {0, 0}, {0, 0}, {0, 1}, {0, -1}};
+    private static final int[] OPPOSITE_FACE = {ChunkMesh.NX, ChunkMesh.PX, ChunkMesh.NY, ChunkMesh.PY, ChunkMesh.NZ, ChunkMesh.PZ};
 
     private final float[] verticesDirt = new float[]{
             -0.5f, 0.5f, 0.5f, //0
@@ -68,179 +125,523 @@ public class Terrain implements Runnable {
     public Terrain(long chunksPerAxis, long chunkSize, boolean plain, boolean isWireframe, Vector3f camPos) throws Exception {
         this.size = chunksPerAxis * chunkSize;
         this.chunkSize = chunkSize;
+        this.loadRadius = chunksPerAxis / 2f;
+        this.unloadRadius = loadRadius + 1;
         this.chunkDepth = -5;
         this.plain = plain;
         this.isWireframe = isWireframe;
         this.camPos = camPos;
-        this.loader = new ObjectLoader();
         this.generator = new PerlinNoise();
-        this.simplexNoise = new SimplexNoise();
-        this.texture = new Texture(loader.loadTexture("textures/default_texture.png"));
+        this.terrainGenerator = new TerrainGenerator(chunkSize, chunkDepth);
 
         RandomGenerator random = RandomGenerator.of("Random");
 
         SimplexNoise.setSeed(random.nextLong(Integer.MAX_VALUE));
+    }
+
+    /*
+     * Creates the GL resources used to upload and draw the chunks, must be called from the GL thread before update.
+     * Generation and meshing don't depend on them, so a terrain that is never drawn doesn't need a GL context.
+     * */
+    public void initGraphics() throws Exception {
+        if (loader != null)
+            return;
+
+        this.loader = new ObjectLoader();
+        this.texture = new Texture(loader.loadTexture("textures/default_texture.png"));
 
         if (isWireframe)
             model = loader.loadModel(verticesDirt, indicesDirt);
-
     }
 
     public void setWireframe(boolean wireframe) {
         isWireframe = wireframe;
     }
 
+    public static int defaultWorkerCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    //Has to be set before the terrain starts generating
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1)
+            throw new IllegalArgumentException("The terrain needs at least one worker");
+
+        this.workerCount = workerCount;
+    }
+
+    public float getLoadRadius() {
+        return loadRadius;
+    }
+
+    public float getUnloadRadius() {
+        return unloadRadius;
+    }
+
+    //Both radius are measured in chunks, the unload radius has to be bigger than the load one
+    public void setViewRadius(float loadRadius, float unloadRadius) {
+        if (loadRadius <= 0 || unloadRadius <= loadRadius)
+            throw new IllegalArgumentException("The unload radius has to be bigger than the load radius");
+
+        this.loadRadius = loadRadius;
+        this.unloadRadius = unloadRadius;
+        renderMapValid = false;
+    }
+
+    public boolean isBatchedRendering() {
+        return batchedRendering;
+    }
+
+    //Only applies to the chunks uploaded afterwards
+    public void setBatchedRendering(boolean batchedRendering) {
+        this.batchedRendering = batchedRendering;
+    }
+
+    public boolean isGreedyMeshing() {
+        return greedyMeshing;
+    }
+
+    //Only affects the chunks meshed after the call
+    public void setGreedyMeshing(boolean greedyMeshing) {
+        this.greedyMeshing = greedyMeshing;
+    }
+
+    public boolean isPackedVertices() {
+        return packedVertices;
+    }
+
+    //The float vertex format is kept for debugging, the renderer reads it from here to build its shaders
+    public void setPackedVertices(boolean packedVertices) {
+        if (loader != null)
+            throw new IllegalStateException("The vertex format can't be changed once the terrain is uploading chunks");
+
+        this.packedVertices = packedVertices;
+    }
+
+    /*
+     * Streaming pass, requests the missing chunks around the camera nearest first and unloads the ones that are too
+     * far away. Only a few chunks are handed to the workers at a time so when the camera moves the chunks near its new
+     * position don't have to wait for the ones requested before.
+     * */
     public void generateTerrain() {
-        long x, z;
-        float levels = 1 / 64f;
-
-        Vector3f vector;
-        Chunk chunk;
-
-        //This could be optimized for sure
-        for (x = ((int) camPos.x - (size / 2)) / chunkSize; x < ((int) camPos.x + (size / 2)) / chunkSize; x++) {
-            for (z = ((int) camPos.z - (size / 2)) / chunkSize; z < ((int) camPos.z + (size / 2)) / chunkSize; z++) {
-                vector = new Vector3f(x * chunkSize, 0, z * chunkSize);
-
-                if (!usedPos.contains(vector)) {
-
-                    List<Voxel> blocks = new ArrayList<>();
-
-                    for (int i = 0; i < chunkSize; i++) {
-                        for (int j = 0; j < chunkSize; j++) {
-                            //float k = generator.generateHeight((int) (i + (x * chunkSize)), (int) (j + (z * chunkSize)));
-
-                            double nx = (i + (x * chunkSize));
-                            double nz = (j + (z * chunkSize));
-
-                            /*
-                             * The values multiplying the nx and nz variables are the frequency of the noise generation,
-                             * for terrain generation this translates into a flatter world when values are near 0 and more
-                             * hills or extreme changes in altitude when does values get further away from 0, to get a better
-                             * terrain generation we can combine multiple wavelengths of noise giving us the perfect combination
-                             * of flat and hilly terrain.
-                             * */
-
-                            double noise = 2 * simplexNoise.noise(0.01 * nx, 0.01 * nz);
-                            noise += 2 * simplexNoise.noise(0.005 * nx, 0.005 * nz);
-                            noise += 0.75 * simplexNoise.noise(0.03 * nx, 0.03 * nz);
-                            noise += 0.20 * simplexNoise.noise(0.04 * nx, 0.04 * nz);
-                            noise += 0.25 * simplexNoise.noise(0.06 * nx, 0.06 * nz);
-                            noise += 0.20 * simplexNoise.noise(0.08 * nx, 0.08 * nz);
-                            noise += 0.15 * simplexNoise.noise(0.1 * nx, 0.1 * nz);
-                            noise /= 3.65;
-                            double k = (1 + noise) / 2;
-
-                            //To enhance the flat areas or create news ones the redistribution function can be changed
-                            k = Math.pow((float) k, 1.5);
-
-                            //Altitude ranges from 1 to levels^(-1)
-                            k = Math.floor(k / levels);
-
-                            if (k < 0)
-                                System.out.println(true);
-
-                            for (int v = (int) k; v > (k + chunkDepth); v--) {
-                                if (v > 10) {
-                                    if (v == k)
-                                        blocks.add(new Voxel(new Vector3f(i, (float) v, j), VoxelType.GRASS));
-                                    else
-                                        blocks.add(new Voxel(new Vector3f(i, (float) v, j), VoxelType.DIRT));
-                                } else {
-                                    blocks.add(new Voxel(new Vector3f(i, (float) v, j), VoxelType.DIRT));
-                                }
-                            }
-                        }
-                    }
-
-                    chunk = new Chunk(blocks, vector, chunkSize);
-
-                    usedPos.add(vector);
-                    chunkMeshes.add(new ChunkMesh(chunk));
+        if (workers == null)
+            workers = Executors.newFixedThreadPool(workerCount, new ChunkWorkerFactory());
+
+        //The camera position is updated by the GL thread
+        float camChunkX = camPos.x / chunkSize;
+        float camChunkZ = camPos.z / chunkSize;
+
+        unloadChunks(camChunkX, camChunkZ);
+
+        int maxPending = workerCount * 2;
+
+        if (pendingChunks.get() >= maxPending)
+            return;
+
+        long originX = (long) Math.floor(camChunkX);
+        long originZ = (long) Math.floor(camChunkZ);
+        int radius = (int) Math.ceil(loadRadius);
+        List<long[]> missing = new ArrayList<>();
+
+        synchronized (chunkLock) {
+            for (long x = originX - radius; x <= originX + radius; x++) {
+                for (long z = originZ - radius; z <= originZ + radius; z++) {
+                    if (chunkDistance(x, z, camChunkX, camChunkZ) <= loadRadius && !requestedChunks.containsKey(ChunkMap.key(x, z)))
+                        missing.add(new long[]{x, z});
+                }
+            }
+        }
+
+        missing.sort(Comparator.comparingDouble(chunk -> chunkDistance(chunk[0], chunk[1], camChunkX, camChunkZ)));
+
+        for (long[] chunk : missing) {
+            if (pendingChunks.get() >= maxPending)
+                break;
+
+            long chunkX = chunk[0], chunkZ = chunk[1];
+            Vector3f origin = new Vector3f(chunkX * chunkSize, 0, chunkZ * chunkSize);
+
+            synchronized (chunkLock) {
+                requestedChunks.put(ChunkMap.key(chunkX, chunkZ), Boolean.TRUE);
+            }
+
+            pendingChunks.incrementAndGet();
+
+            //Generation and meshing of each chunk is independent so they run in parallel in the workers
+            workers.execute(() -> {
+                try {
+                    addChunk(chunkX, chunkZ, terrainGenerator.generateChunk(chunkX, chunkZ, origin));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    discardChunk(chunkX, chunkZ);
+                } finally {
+                    pendingChunks.decrementAndGet();
                 }
+            });
+        }
+    }
+
+    /*
+     * Forgets a chunk whose generation or meshing failed so the next pass requests it again, the executor would swallow
+     * the exception and leave a hole in the world. A chunk that already got its mesh registered stays loaded.
+     * */
+    private void discardChunk(long chunkX, long chunkZ) {
+        long key = ChunkMap.key(chunkX, chunkZ);
+
+        synchronized (chunkLock) {
+            if (chunkMap.containsKey(key))
+                return;
+
+            generatedChunks.remove(key);
+            requestedChunks.remove(key);
+        }
+    }
+
+    //Distance in chunks from the center of the chunk to the camera
+    private static float chunkDistance(long chunkX, long chunkZ, float camChunkX, float camChunkZ) {
+        float distX = (chunkX + 0.5f) - camChunkX;
+        float distZ = (chunkZ + 0.5f) - camChunkZ;
+
+        return (float) Math.sqrt((distX * distX) + (distZ * distZ));
+    }
+
+    /*
+     * Removes the chunks beyond the unload radius from the world, their meshes are handed to the GL thread to release
+     * the models, and the meshes left next to them are queued to be rebuilt since their border faces are visible again.
+     * */
+    private void unloadChunks(float camChunkX, float camChunkZ) {
+        List<ChunkMesh> remesh = new ArrayList<>();
+
+        synchronized (chunkLock) {
+            long[] unloaded = new long[chunkMap.size()];
+            int count = 0;
+
+            for (int slot = 0; slot < chunkMap.capacity(); slot++) {
+                if (chunkMap.valueAt(slot) == null)
+                    continue;
+
+                long key = chunkMap.keyAt(slot);
+
+                if (chunkDistance(ChunkMap.keyX(key), ChunkMap.keyZ(key), camChunkX, camChunkZ) > unloadRadius)
+                    unloaded[count++] = key;
+            }
+
+            for (int i = 0; i < count; i++) {
+                ChunkMesh chunkMesh = chunkMap.remove(unloaded[i]);
+                generatedChunks.remove(unloaded[i]);
+                requestedChunks.remove(unloaded[i]);
+                unloadQueue.add(chunkMesh);
             }
+
+            //Only the meshes still loaded are left pointing to the removed chunks
+            for (int i = 0; i < count; i++) {
+                long chunkX = ChunkMap.keyX(unloaded[i]);
+                long chunkZ = ChunkMap.keyZ(unloaded[i]);
+
+                for (int face = 0; face < 6; face++) {
+                    ChunkMesh adjacent = chunkMap.get(chunkX + NEIGHBOUR_OFFSETS[face][0], chunkZ + NEIGHBOUR_OFFSETS[face][1]);
+
+                    if (adjacent == null || adjacent.getNeighbour(OPPOSITE_FACE[face]) == null)
+                        continue;
+
+                    adjacent.setNeighbour(OPPOSITE_FACE[face], null);
+
+                    if (!remesh.contains(adjacent))
+                        remesh.add(adjacent);
+                }
+            }
+        }
+
+        //Rebuilt by the workers like any other edit, so the streaming pass isn't held up by the meshing
+        for (ChunkMesh mesh : remesh)
+            markDirty(mesh);
+    }
+
+    public Chunk getChunk(long chunkX, long chunkZ) {
+        synchronized (chunkLock) {
+            return generatedChunks.get(chunkX, chunkZ);
+        }
+    }
+
+    private ChunkMesh getChunkMesh(long chunkX, long chunkZ) {
+        synchronized (chunkLock) {
+            return chunkMap.get(chunkX, chunkZ);
+        }
+    }
+
+    private Chunk[] getNeighbours(long chunkX, long chunkZ) {
+        Chunk[] neighbours = new Chunk[6];
+
+        for (int face = 0; face < 6; face++) {
+            if (face != ChunkMesh.PY && face != ChunkMesh.NY)
+                neighbours[face] = generatedChunks.get(ChunkMap.key(chunkX + NEIGHBOUR_OFFSETS[face][0], chunkZ + NEIGHBOUR_OFFSETS[face][1]));
         }
+
+        return neighbours;
     }
 
+    /*
+     * Meshes the new chunk against the chunks already generated around it, and rebuilds the meshes of those neighbours
+     * since the faces they had on the shared border might be hidden now. This runs on the workers, so the chunk and
+     * its mesh are registered under chunkLock, when two neighbours are meshed at the same time the one registered
+     * last sees the other one and rebuilds whichever mesh is missing the border.
+     * */
+    private void addChunk(long chunkX, long chunkZ, Chunk chunk) {
+        Chunk[] neighbours;
+
+        synchronized (chunkLock) {
+            generatedChunks.put(ChunkMap.key(chunkX, chunkZ), chunk);
+            neighbours = getNeighbours(chunkX, chunkZ);
+        }
+
+        ChunkMesh chunkMesh = new ChunkMesh(chunk, neighbours, greedyMeshing, packedVertices);
+        List<ChunkMesh> remesh = new ArrayList<>();
+
+        synchronized (chunkLock) {
+            Chunk[] current = getNeighbours(chunkX, chunkZ);
+
+            for (int face = 0; face < 6; face++) {
+                if (current[face] != neighbours[face]) {
+                    chunkMesh.setNeighbour(face, current[face]);
+
+                    if (!remesh.contains(chunkMesh))
+                        remesh.add(chunkMesh);
+                }
+
+                ChunkMesh adjacent = chunkMap.get(ChunkMap.key(chunkX + NEIGHBOUR_OFFSETS[face][0], chunkZ + NEIGHBOUR_OFFSETS[face][1]));
+
+                if (current[face] == null || adjacent == null || adjacent.getNeighbour(OPPOSITE_FACE[face]) == chunk)
+                    continue;
+
+                adjacent.setNeighbour(OPPOSITE_FACE[face], chunk);
+                remesh.add(adjacent);
+            }
+
+            chunkMap.put(ChunkMap.key(chunkX, chunkZ), chunkMesh);
+        }
+
+        for (ChunkMesh mesh : remesh)
+            mesh.updateMesh();
+
+        queueUpload(chunkMesh);
+
+        for (ChunkMesh mesh : remesh)
+            queueUpload(mesh);
+    }
+
+    //Hands a mesh that is ready to the GL thread, a mesh already waiting is uploaded once with its latest data
+    private void queueUpload(ChunkMesh chunkMesh) {
+        if (pendingUploads.add(chunkMesh))
+            uploadQueue.add(chunkMesh);
+    }
+
+    private Model loadChunkModel(ChunkMesh chunk) {
+        Model chunkModel;
+
+        //The mesh can be rebuilt by the generation thread while we upload it
+        synchronized (chunk) {
+            if (chunk.isPacked() && batchedRendering && loader.isBatchingSupported())
+                chunkModel = loader.loadBatchedModel(chunk.getVertexData(), chunk.getVertexCount());
+            else if (chunk.isPacked())
+                chunkModel = loader.loadPackedModel(chunk.getVertexData(), chunk.getVertexCount());
+            else
+                chunkModel = loader.loadInterleavedModel(chunk.getVertexData(), chunk.getVertexCount());
+        }
+
+        if (chunk.getVertexCount() > 0) {
+            float chunkEnd = chunkSize - 0.5f;
+            chunkModel.setBounds(new Vector3f(-0.5f, chunk.getMinY(), -0.5f), new Vector3f(chunkEnd, chunk.getMaxY(), chunkEnd));
+        }
+
+        try {
+            chunkModel.setTexture(texture);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return chunkModel;
+    }
+
+    /*
+     * Follows the camera and sorts the meshes waiting for the GL thread, it's called on every tick of the game. The
+     * GL work itself is left to uploadChunks, that runs once per rendered frame so the upload budget isn't multiplied
+     * by the ticks caught up on a late frame.
+     * */
     public void update(Vector3f camPos) {
         this.camPos = camPos;
 
-        if (!rebuildMeshes) {
-            if (index < chunkMeshes.size()) {
-                for (long i = index; i < chunkMeshes.size(); i++) {
-                    ChunkMesh chunk = chunkMeshes.get((int) i);
-                    newModel = loader.loadModel(chunk.positions, chunk.uvs);
+        ChunkMesh chunk;
+        long camChunkX = (long) Math.floor(camPos.x / chunkSize);
+        long camChunkZ = (long) Math.floor(camPos.z / chunkSize);
 
-                    try {
-                        newModel.setTexture(texture);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        if (camChunkX != uploadChunkX || camChunkZ != uploadChunkZ) {
+            uploadChunkX = camChunkX;
+            uploadChunkZ = camChunkZ;
 
-                    entities.add(new Entity(newModel, chunk.chunk.getOrigin(), new Vector3f(0, 0, 0), 1));
+            List<ChunkMesh> meshes = new ArrayList<>(readyMeshes);
+            readyMeshes.clear();
+            readyMeshes.addAll(meshes);
+        }
 
-                }
+        while ((chunk = uploadQueue.poll()) != null)
+            readyMeshes.add(chunk);
+    }
 
-                index++;
+    //Releases the unloaded chunks and uploads the closest ready meshes within the budget, once per rendered frame
+    public void uploadChunks() {
+        if (loader == null)
+            throw new IllegalStateException("initGraphics has to be called before uploading the terrain");
+
+        UPLOAD_SCOPE.begin();
+        releaseUnloadedChunks();
+
+        ChunkMesh chunk;
+        long start = System.nanoTime();
+        long uploadedBytes = 0;
+
+        //Each mesh replaces the model of its chunk in place, the rest of the world is left untouched
+        while ((chunk = readyMeshes.poll()) != null) {
+            pendingUploads.remove(chunk);
+
+            if (chunk.isDisposed())
+                continue;
+
+            uploadedBytes += (long) chunk.getVertexCount() * (chunk.isPacked() ? MeshBuilder.PACKED_VERTEX_SIZE : MeshBuilder.FLOAT_VERTEX_SIZE);
+            newModel = loadChunkModel(chunk);
+
+            Entity entity = new Entity(newModel, chunk.chunk.getOrigin(), new Vector3f(0, 0, 0), 1);
+            Entity oldEntity = chunkEntities.put(chunk, entity);
+
+            if (oldEntity != null) {
+                hideEntity(oldEntity);
+                loader.deleteModel(oldEntity.getModel());
             }
-        } else {
-            rebuildMeshes = false;
-            entities = new ArrayList<>();
 
-            for (long i = 0; i < chunkMeshes.size(); i++) {
-                ChunkMesh chunk = chunkMeshes.get((int) i);
-                newModel = loader.loadModel(chunk.positions, chunk.uvs);
+            showEntity(entity);
 
-                try {
-                    newModel.setTexture(texture);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            if (uploadedBytes >= uploadBudgetBytes || (System.nanoTime() - start) >= uploadBudgetNanos)
+                break;
+        }
 
-                entities.add(new Entity(newModel, chunk.chunk.getOrigin(), new Vector3f(0, 0, 0), 1));
+        UPLOAD_SCOPE.end();
+    }
+
+    //Distance in chunks from the mesh to the chunk the camera is in
+    private double uploadPriority(ChunkMesh chunkMesh) {
+        Vector3f origin = chunkMesh.chunk.getOrigin();
+
+        return chunkDistance((long) Math.floor(origin.x / chunkSize), (long) Math.floor(origin.z / chunkSize), uploadChunkX + 0.5f, uploadChunkZ + 0.5f);
+    }
+
+    //Meshes waiting to be uploaded by the GL thread
+    public int getPendingUploads() {
+        return pendingUploads.size();
+    }
 
+    public long getUploadBudgetBytes() {
+        return uploadBudgetBytes;
+    }
+
+    public long getUploadBudgetNanos() {
+        return uploadBudgetNanos;
+    }
+
+    //Uploads stop for the frame once any of both limits is reached, the first upload of the frame is always done
+    public void setUploadBudget(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0)
+            throw new IllegalArgumentException("The upload budget has to be positive");
+
+        this.uploadBudgetBytes = bytes;
+        this.uploadBudgetNanos = nanos;
+    }
+
+    private void releaseUnloadedChunks() {
+        ChunkMesh chunk;
+
+        while ((chunk = unloadQueue.poll()) != null) {
+            Entity entity = chunkEntities.remove(chunk);
+
+            if (entity != null) {
+                hideEntity(entity);
+                loader.deleteModel(entity.getModel());
             }
+
+            chunk.cleanup();
         }
     }
 
+    //The returned map is reused between frames, it must not be modified by the caller
     public Map<Model, List<Entity>> getTerrain() {
-        entitiesMap = new HashMap<>();
+        RENDER_MAP_SCOPE.begin();
 
-        for (Entity entity : entities) {
+        long camChunkX = (long) Math.floor(camPos.x / chunkSize);
+        long camChunkZ = (long) Math.floor(camPos.z / chunkSize);
 
-            Vector3f pos = entity.getPos();
+        if (!renderMapValid || camChunkX != renderChunkX || camChunkZ != renderChunkZ) {
+            renderChunkX = camChunkX;
+            renderChunkZ = camChunkZ;
+            renderMapValid = true;
 
-            float distX = (camPos.x - pos.x);
-            float distZ = (camPos.z - pos.z);
+            entitiesMap.clear();
 
-            if ((Math.abs(distX) <= (size / 2)) && (Math.abs(distZ) <= (size / 2))) {
-                addEntity(entity);
+            synchronized (chunkEntities) {
+                for (Entity entity : chunkEntities.values())
+                    showEntity(entity);
             }
         }
 
+        RENDER_MAP_SCOPE.end();
+
         return entitiesMap;
     }
 
+    //Entities of the chunks within the unload radius of the chunk the camera was in when the map was filtered
+    private void showEntity(Entity entity) {
+        Vector3f pos = entity.getPos();
+
+        if (chunkDistance((long) Math.floor(pos.x / chunkSize), (long) Math.floor(pos.z / chunkSize), renderChunkX + 0.5f, renderChunkZ + 0.5f) <= unloadRadius)
+            addEntity(entity);
+    }
+
+    private void hideEntity(Entity entity) {
+        List<Entity> entitiesList = entitiesMap.get(entity.getModel());
+
+        if (entitiesList != null && entitiesList.remove(entity) && entitiesList.isEmpty())
+            entitiesMap.remove(entity.getModel());
+    }
+
     public List<Vector3f> getActiveBlockPositions() {
         activeChunks = new ArrayList<>();
         blockPositions = new ArrayList<>();
 
-        for (ChunkMesh chunkMesh : chunkMeshes) {
-            Vector3f pos = chunkMesh.chunk.getOrigin();
+        synchronized (chunkLock) {
+            for (int slot = 0; slot < generatedChunks.capacity(); slot++) {
+                Chunk chunk = generatedChunks.valueAt(slot);
 
-            float distX = (camPos.x - pos.x);
-            float distZ = (camPos.z - pos.z);
+                if (chunk == null)
+                    continue;
 
-            if ((Math.abs(distX) <= (size / 2)) && (Math.abs(distZ) <= (size / 2))) {
-                activeChunks.add(chunkMesh.chunk);
+                Vector3f pos = chunk.getOrigin();
+
+                float distX = (camPos.x - pos.x);
+                float distZ = (camPos.z - pos.z);
+
+                if ((Math.abs(distX) <= (size / 2)) && (Math.abs(distZ) <= (size / 2))) {
+                    activeChunks.add(chunk);
+                }
             }
         }
 
         for (Chunk chunk : activeChunks) {
             List<Voxel> voxels = chunk.getVoxels();
 
+            //World positions, the same ones removeVoxel expects
             for (Voxel voxel : voxels) {
-                blockPositions.add(voxel.origin);
+                blockPositions.add(new Vector3f(voxel.origin).add(chunk.getOrigin()));
             }
         }
 
@@ -250,52 +651,171 @@ public class Terrain implements Runnable {
     public void addEntity(Entity entity) {
         List<Entity> entitiesList = entitiesMap.get(entity.getModel());
         if (entitiesList != null) {
-            if (!entitiesList.contains(entity)) {
+            if (!entitiesList.contains(entity))
                 entitiesList.add(entity);
-                entitiesMap.put(entity.getModel(), entitiesList);
-            }
         } else {
-            List<Entity> aux = new ArrayList<>();
+            List<Entity> aux = new ArrayList<>(1);
             aux.add(entity);
             entitiesMap.put(entity.getModel(), aux);
         }
     }
 
+    //Voxel at the given world position, null for air and for the chunks that are not loaded
+    public VoxelType getVoxel(int x, int y, int z) {
+        int size = (int) chunkSize;
+        Chunk chunk = getChunk(Math.floorDiv(x, size), Math.floorDiv(z, size));
+
+        if (chunk == null)
+            return null;
+
+        return chunk.get(Math.floorMod(x, size), y, Math.floorMod(z, size));
+    }
+
+    /*
+     * Changes the voxel at the given world position, null removes it. Only the chunk containing it is remeshed, and the
+     * one next to it when the voxel lies on the border. Returns false when the chunk is not loaded or the position is
+     * out of its height.
+     * */
+    public boolean setVoxel(int x, int y, int z, VoxelType type) {
+        int size = (int) chunkSize;
+        long chunkX = Math.floorDiv(x, size);
+        long chunkZ = Math.floorDiv(z, size);
+        int localX = Math.floorMod(x, size);
+        int localZ = Math.floorMod(z, size);
+
+        ChunkMesh chunkMesh = getChunkMesh(chunkX, chunkZ);
+
+        if (chunkMesh == null || !chunkMesh.chunk.contains(localX, y, localZ))
+            return false;
+
+        if (chunkMesh.chunk.get(localX, y, localZ) == type)
+            return true;
+
+        chunkMesh.chunk.set(localX, y, localZ, type);
+        markDirty(chunkMesh);
+
+        //Changing a voxel on the border changes the faces of the chunk next to it
+        if (localX == 0)
+            markDirty(getChunkMesh(chunkX - 1, chunkZ));
+        else if (localX == size - 1)
+            markDirty(getChunkMesh(chunkX + 1, chunkZ));
+
+        if (localZ == 0)
+            markDirty(getChunkMesh(chunkX, chunkZ - 1));
+        else if (localZ == size - 1)
+            markDirty(getChunkMesh(chunkX, chunkZ + 1));
+
+        return true;
+    }
+
     public void removeVoxel(Vector3f position) {
-        Vector3f chunkPos = new Vector3f(Math.abs((int) Math.floor(position.x / chunkSize)), 0, Math.abs(((int) Math.floor(position.z / chunkSize))));
-        ChunkMesh chunk = null;
-        int index = -1;
+        setVoxel((int) Math.floor(position.x), (int) Math.floor(position.y), (int) Math.floor(position.z), null);
+    }
+
+    /*
+     * Schedules the remesh of a chunk that was modified, the mesh is rebuilt by the workers and its model replaced
+     * once the GL thread uploads it. A chunk that is already waiting is only rebuilt once no matter how many edits it
+     * gets in the meantime.
+     * */
+    private void markDirty(ChunkMesh chunkMesh) {
+        if (chunkMesh == null || !dirtyMeshes.add(chunkMesh))
+            return;
+
+        Runnable remesh = () -> {
+            dirtyMeshes.remove(chunkMesh);
+            chunkMesh.updateMesh();
+            queueUpload(chunkMesh);
+        };
+
+        if (workers != null && !workers.isShutdown())
+            workers.execute(remesh);
+        else
+            remesh.run();
+    }
+
+    public void stopLoop() {
+        running = false;
+
+        //Chunks still being generated are never uploaded, their off-heap meshes are released here
+        for (ChunkMesh chunk : uploadQueue)
+            chunk.cleanup();
+
+        for (ChunkMesh chunk : readyMeshes)
+            chunk.cleanup();
 
-        for (int i = 0; i < chunkMeshes.size(); i++) {
-            ChunkMesh chunkMesh = chunkMeshes.get(i);
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    /*
+     * Stops the workers and releases everything the terrain holds: the models of the chunks, the meshes waiting to be
+     * uploaded and the buffers of its loader (the chunk batch and the quad index buffer included).
+     * Must be called from the GL thread, the terrain can't be used afterwards.
+     * */
+    public void cleanup() {
+        stopLoop();
+
+        ChunkMesh chunk;
 
-            if (chunkMesh.chunk.getOrigin().equals(chunkPos.x, chunkPos.y, chunkPos.z)) {
-                chunk = chunkMesh;
-                index = i;
+        while ((chunk = unloadQueue.poll()) != null)
+            chunk.cleanup();
+
+        if (loader != null) {
+            synchronized (chunkEntities) {
+                for (Entity entity : chunkEntities.values())
+                    loader.deleteModel(entity.getModel());
             }
+
+            loader.cleanup();
+            loader = null;
         }
 
-        if (chunk != null && (index != -1)) {
-            chunk.deleteVoxel(position);
-            chunk.updateMesh();
-            chunkMeshes.add(index, chunk);
-            rebuildMeshes = true;
+        synchronized (chunkLock) {
+            for (int slot = 0; slot < chunkMap.capacity(); slot++) {
+                ChunkMesh chunkMesh = chunkMap.valueAt(slot);
+
+                if (chunkMesh != null)
+                    chunkMesh.cleanup();
+            }
         }
+
+        chunkEntities.clear();
+        entitiesMap.clear();
+        renderMapValid = false;
     }
 
-    public void stopLoop() {
-        running = false;
+    //Worker threads release their mesh builder when the pool shuts down
+    private static class ChunkWorkerFactory implements ThreadFactory {
+
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    MeshBuilder.release();
+                }
+            }, "Kuboid-chunk-worker-" + COUNT.incrementAndGet());
+
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     public void run() {
         try {
-            generateTerrain();
-
-            //while (running) {
-            //    generateTerrain();
-            //}
+            while (running) {
+                generateTerrain();
+                Thread.sleep(STREAM_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            //Interrupted by stopLoop or the game when it closes
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            MeshBuilder.release();
         }
     }
 }
@@ -0,0 +1,83 @@
+package Kuboid.manager.generation;
+
+import Kuboid.manager.utils.SimplexNoise;
+import Kuboid.manager.voxel.VoxelType;
+import org.joml.Vector3f;
+
+/*
+ * Fills the voxels of a chunk from the height given by several octaves of simplex noise. It doesn't touch any GL state
+ * so it can be used by the chunk workers and outside of the engine, the seed is the global one of SimplexNoise.
+ * */
+public class TerrainGenerator {
+
+    //Octaves of noise added up for the height of each column
+    private static final double[] FREQUENCIES = {0.01, 0.005, 0.03, 0.04, 0.06, 0.08, 0.1};
+    private static final double[] AMPLITUDES = {2, 2, 0.75, 0.20, 0.25, 0.20, 0.15};
+
+    private final long chunkSize;
+    //Layers of voxels under the surface of each column, as a negative offset from the top one
+    private final long chunkDepth;
+
+    public TerrainGenerator(long chunkSize, long chunkDepth) {
+        this.chunkSize = chunkSize;
+        this.chunkDepth = chunkDepth;
+    }
+
+    public Chunk generateChunk(long x, long z) {
+        return generateChunk(x, z, new Vector3f(x * chunkSize, 0, z * chunkSize));
+    }
+
+    public Chunk generateChunk(long x, long z, Vector3f origin) {
+        float levels = 1 / 64f;
+        Chunk chunk = new Chunk(origin, chunkSize);
+
+        int size = (int) chunkSize;
+        double startX = x * chunkSize;
+        double startZ = z * chunkSize;
+
+        /*
+         * The values multiplying the world coordinates are the frequency of the noise generation,
+         * for terrain generation this translates into a flatter world when values are near 0 and more
+         * hills or extreme changes in altitude when does values get further away from 0, to get a better
+         * terrain generation we can combine multiple wavelengths of noise giving us the perfect combination
+         * of flat and hilly terrain.
+         *
+         * Each octave is added to the heights of the whole chunk at once, column i, j is at heights[i * size + j].
+         * */
+        double[] heights = new double[size * size];
+
+        for (int octave = 0; octave < FREQUENCIES.length; octave++)
+            SimplexNoise.addNoise(heights, size, size, startX, startZ, FREQUENCIES[octave], AMPLITUDES[octave]);
+
+        for (int i = 0; i < chunkSize; i++) {
+            for (int j = 0; j < chunkSize; j++) {
+                double noise = heights[(i * size) + j];
+                noise /= 3.65;
+                double k = (1 + noise) / 2;
+
+                //To enhance the flat areas or create news ones the redistribution function can be changed
+                k = Math.pow((float) k, 1.5);
+
+                //Altitude ranges from 1 to levels^(-1)
+                k = Math.floor(k / levels);
+
+                for (int v = (int) k; v > (k + chunkDepth); v--) {
+                    if (v > 10) {
+                        if (v == k)
+                            chunk.set(i, v, j, VoxelType.GRASS);
+                        else
+                            chunk.set(i, v, j, VoxelType.DIRT);
+                    } else {
+                        chunk.set(i, v, j, VoxelType.DIRT);
+                    }
+                }
+            }
+        }
+
+        return chunk;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+}
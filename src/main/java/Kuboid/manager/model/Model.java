@@ -1,16 +1,40 @@
 package Kuboid.manager.model;
 
+import Kuboid.manager.ModelBatch;
+import org.joml.Vector3f;
+
 public class Model {
 
     private int id;
     private int vertexCount;
     private Texture texture;
+    //Axis aligned bounding box in model space, null when unknown, the model is never culled then
+    private Vector3f boundsMin, boundsMax;
+    //Batch holding the vertices of the model from firstVertex on, null when it has its own vao
+    private ModelBatch batch;
+    private int firstVertex;
+    //Drawn with its index buffer, vertexCount is the number of indices then
+    private boolean indexed;
 
     public Model(int id, int vertexCount) {
         this.id = id;
         this.vertexCount = vertexCount;
     }
 
+    public Model(int id, int vertexCount, boolean indexed) {
+        this.id = id;
+        this.vertexCount = vertexCount;
+        this.indexed = indexed;
+    }
+
+    public Model(int id, int vertexCount, ModelBatch batch, int firstVertex) {
+        this.id = id;
+        this.vertexCount = vertexCount;
+        this.batch = batch;
+        this.firstVertex = firstVertex;
+        this.indexed = true;
+    }
+
     public Model(int id, int vertexCount, Texture texture) {
         this.id = id;
         this.vertexCount = vertexCount;
@@ -38,4 +62,33 @@ public class Model {
     public void setTexture(Texture texture) {
         this.texture = texture;
     }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public ModelBatch getBatch() {
+        return batch;
+    }
+
+    public int getFirstVertex() {
+        return firstVertex;
+    }
+
+    public boolean hasBounds() {
+        return boundsMin != null;
+    }
+
+    public Vector3f getBoundsMin() {
+        return boundsMin;
+    }
+
+    public Vector3f getBoundsMax() {
+        return boundsMax;
+    }
+
+    public void setBounds(Vector3f min, Vector3f max) {
+        this.boundsMin = min;
+        this.boundsMax = max;
+    }
 }
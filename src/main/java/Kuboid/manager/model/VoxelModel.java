@@ -6,6 +6,9 @@ import org.joml.Vector3f;
 public class VoxelModel {
     private static final float ERROR = 0.000f;
 
+    //Size of a single tile of the texture atlas, which is a grid of 16x16 tiles
+    public static final float TILE_SIZE = 1.f / 16.f;
+
     public static Vector3f[] PX_POS = {
 
             new Vector3f(0.5f, 0.5f, -0.5f),
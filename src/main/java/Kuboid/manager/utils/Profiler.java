@@ -0,0 +1,155 @@
+package Kuboid.manager.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Lightweight frame profiler. Each subsystem gets a named Scope once (usually in a static field) and wraps its work in
+ * begin/end, the time of every scope is added up during the frame and stored when the frame ends in a ring buffer with
+ * the last HISTORY frames, together with the frame time. From that history the percentiles of every scope can be
+ * queried and the whole thing dumped to a CSV file.
+ *
+ * The scopes are meant to be used from the GL thread, they are not synchronized.
+ * */
+public class Profiler {
+
+    public static final int HISTORY = 1024;
+
+    private static final List<Scope> SCOPES = new ArrayList<>();
+    private static final long[] FRAME_TIMES = new long[HISTORY];
+    private static final long[] SCRATCH = new long[HISTORY];
+
+    private static boolean enabled = true;
+    private static long frames;
+
+    public static class Scope {
+
+        private final String name;
+        private final long[] samples = new long[HISTORY];
+        private long start;
+        private long current;
+
+        private Scope(String name) {
+            this.name = name;
+        }
+
+        public void begin() {
+            if (enabled)
+                start = System.nanoTime();
+        }
+
+        public void end() {
+            if (enabled)
+                current += System.nanoTime() - start;
+        }
+
+        //For times measured somewhere else, like the GPU timer queries
+        public void add(long nanos) {
+            if (enabled)
+                current += nanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        //In milliseconds, over the frames kept in the history
+        public double getPercentile(double percentile) {
+            return Profiler.percentile(samples, percentile);
+        }
+    }
+
+    //Returns the scope with the given name, creating it the first time
+    public static synchronized Scope scope(String name) {
+        for (Scope scope : SCOPES) {
+            if (scope.name.equals(name))
+                return scope;
+        }
+
+        Scope scope = new Scope(name);
+        SCOPES.add(scope);
+        return scope;
+    }
+
+    //Stores the time of the frame and of every scope during it, should be called once per frame
+    public static void endFrame(long frameNanos) {
+        if (!enabled)
+            return;
+
+        int slot = (int) (frames % HISTORY);
+        FRAME_TIMES[slot] = frameNanos;
+
+        for (int i = 0; i < SCOPES.size(); i++) {
+            Scope scope = SCOPES.get(i);
+            scope.samples[slot] = scope.current;
+            scope.current = 0;
+        }
+
+        frames++;
+    }
+
+    //Frame time percentile in milliseconds, over the frames kept in the history
+    public static double getFramePercentile(double percentile) {
+        return percentile(FRAME_TIMES, percentile);
+    }
+
+    private static double percentile(long[] samples, double percentile) {
+        int count = (int) Math.min(frames, HISTORY);
+
+        if (count == 0)
+            return 0;
+
+        System.arraycopy(samples, 0, SCRATCH, 0, count);
+        Arrays.sort(SCRATCH, 0, count);
+
+        int index = (int) Math.ceil((percentile / 100) * count) - 1;
+        index = Math.max(0, Math.min(count - 1, index));
+
+        return SCRATCH[index] / 1e6;
+    }
+
+    public static String getSummary() {
+        return String.format(Locale.ROOT, "p50 %.2f ms p95 %.2f ms p99 %.2f ms",
+                getFramePercentile(50), getFramePercentile(95), getFramePercentile(99));
+    }
+
+    //One row per frame in the history, from the oldest to the newest, with the times in milliseconds
+    public static void dumpCsv(Path path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            StringBuilder header = new StringBuilder("frame,frame_ms");
+
+            for (Scope scope : SCOPES)
+                header.append(',').append(scope.name).append("_ms");
+
+            writer.println(header);
+
+            long first = Math.max(0, frames - HISTORY);
+
+            for (long frame = first; frame < frames; frame++) {
+                int slot = (int) (frame % HISTORY);
+                StringBuilder row = new StringBuilder();
+
+                row.append(frame).append(',').append(String.format(Locale.ROOT, "%.4f", FRAME_TIMES[slot] / 1e6));
+
+                for (Scope scope : SCOPES)
+                    row.append(',').append(String.format(Locale.ROOT, "%.4f", scope.samples[slot] / 1e6));
+
+                writer.println(row);
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Profiler.enabled = enabled;
+    }
+}
@@ -45,6 +45,17 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
             251, 34, 242, 193, 238, 210, 144, 12, 191, 179, 162, 241, 81, 51, 145, 235, 249, 14, 239, 107,
             49, 192, 214, 31, 181, 199, 106, 157, 184, 84, 204, 176, 115, 121, 50, 45, 127, 4, 150, 254,
             138, 236, 205, 93, 222, 114, 67, 29, 24, 72, 243, 141, 128, 195, 78, 66, 215, 61, 156, 180};
+    // Components of grad3 in primitive arrays for the 2D noise, so the gradients are read without going through objects
+    private static final double[] GRAD2_X = new double[12];
+    private static final double[] GRAD2_Y = new double[12];
+
+    static {
+        for (int i = 0; i < 12; i++) {
+            GRAD2_X[i] = grad3[i].x;
+            GRAD2_Y[i] = grad3[i].y;
+        }
+    }
+
     // To remove the need for index wrapping, double the permutation table length
     private static short perm[] = new short[512];
     private static short permMod12[] = new short[512];
@@ -71,10 +82,6 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
         return x < xi ? xi - 1 : xi;
     }
 
-    private static double dot(Grad g, double x, double y) {
-        return g.x * x + g.y * y;
-    }
-
     private static double dot(Grad g, double x, double y, double z) {
         return g.x * x + g.y * y + g.z * z;
     }
@@ -140,19 +147,19 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
         if (t0 < 0) n0 = 0.0;
         else {
             t0 *= t0;
-            n0 = t0 * t0 * dot(grad3[gi0], x0, y0);  // (x,y) of grad3 used for 2D gradient
+            n0 = t0 * t0 * (GRAD2_X[gi0] * x0 + GRAD2_Y[gi0] * y0);  // (x,y) of grad3 used for 2D gradient
         }
         double t1 = 0.5 - x1 * x1 - y1 * y1;
         if (t1 < 0) n1 = 0.0;
         else {
             t1 *= t1;
-            n1 = t1 * t1 * dot(grad3[gi1], x1, y1);
+            n1 = t1 * t1 * (GRAD2_X[gi1] * x1 + GRAD2_Y[gi1] * y1);
         }
         double t2 = 0.5 - x2 * x2 - y2 * y2;
         if (t2 < 0) n2 = 0.0;
         else {
             t2 *= t2;
-            n2 = t2 * t2 * dot(grad3[gi2], x2, y2);
+            n2 = t2 * t2 * (GRAD2_X[gi2] * x2 + GRAD2_Y[gi2] * y2);
         }
         // Add contributions from each corner to get the final noise value.
         // The result is scaled to return values in the interval [-1,1].
@@ -160,6 +167,67 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
     }
 
 
+    /*
+     * Adds one octave of 2D noise to a whole grid of sizeX by sizeZ points, laid out by rows of z (index x * sizeZ + z),
+     * starting at (startX, startZ) with a step of 1. Each point gets amplitude * noise(frequency * x, frequency * z).
+     *
+     * The body of the scalar noise is inlined in the loop: the z coordinates are computed once for all the rows and the
+     * x one once per row, the middle corner is picked without a branch and the corners are added up as they are
+     * found. Every operation is done in the same order as in noise, so the results are the same bit for bit.
+     */
+    public static void addNoise(double[] grid, int sizeX, int sizeZ, double startX, double startZ, double frequency, double amplitude) {
+        if (grid.length < sizeX * sizeZ)
+            throw new IllegalArgumentException("The grid has less than " + (sizeX * sizeZ) + " points");
+
+        double[] zins = new double[sizeZ];
+
+        for (int j = 0; j < sizeZ; j++)
+            zins[j] = frequency * (startZ + j);
+
+        for (int row = 0; row < sizeX; row++) {
+            double xin = frequency * (startX + row);
+            int offset = row * sizeZ;
+
+            for (int col = 0; col < sizeZ; col++) {
+                double yin = zins[col];
+                double s = (xin + yin) * F2;
+                int i = fastfloor(xin + s);
+                int j = fastfloor(yin + s);
+                double t = (i + j) * G2;
+                double x0 = xin - (i - t);
+                double y0 = yin - (j - t);
+                int i1 = (x0 > y0) ? 1 : 0;
+                int j1 = 1 - i1;
+                double x1 = x0 - i1 + G2;
+                double y1 = y0 - j1 + G2;
+                double x2 = x0 - 1.0 + 2.0 * G2;
+                double y2 = y0 - 1.0 + 2.0 * G2;
+                int ii = i & 255;
+                int jj = j & 255;
+                int gi0 = permMod12[ii + perm[jj]];
+                int gi1 = permMod12[ii + i1 + perm[jj + j1]];
+                int gi2 = permMod12[ii + 1 + perm[jj + 1]];
+                double n = 0.0;
+                double t0 = 0.5 - x0 * x0 - y0 * y0;
+                if (t0 >= 0) {
+                    t0 *= t0;
+                    n += t0 * t0 * (GRAD2_X[gi0] * x0 + GRAD2_Y[gi0] * y0);
+                }
+                double t1 = 0.5 - x1 * x1 - y1 * y1;
+                if (t1 >= 0) {
+                    t1 *= t1;
+                    n += t1 * t1 * (GRAD2_X[gi1] * x1 + GRAD2_Y[gi1] * y1);
+                }
+                double t2 = 0.5 - x2 * x2 - y2 * y2;
+                if (t2 >= 0) {
+                    t2 *= t2;
+                    n += t2 * t2 * (GRAD2_X[gi2] * x2 + GRAD2_Y[gi2] * y2);
+                }
+                grid[offset + col] += amplitude * (70.0 * n);
+            }
+        }
+    }
+
     // 3D simplex noise
     public static double noise(double xin, double yin, double zin) {
         double n0, n1, n2, n3; // Noise contributions from the four corners
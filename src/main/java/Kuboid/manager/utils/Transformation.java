@@ -8,28 +8,37 @@ import org.joml.Vector3f;
 public class Transformation {
 
     public static Matrix4f createTransformationMatrix(Entity entity) {
-        Matrix4f matrix = new Matrix4f();
-        matrix.identity().translate(entity.getPos()).
-                rotateX((float) Math.toRadians(entity.getRotation().x)).
-                rotateY((float) Math.toRadians(entity.getRotation().y)).
-                rotateZ((float) Math.toRadians(entity.getRotation().z)).
-                scale(entity.getScale());
-
-        return matrix;
+        return createTransformationMatrix(entity, new Matrix4f());
+    }
+
+    //Writes the transformation into the given matrix, the rotations are skipped for the axes the entity isn't rotated on
+    public static Matrix4f createTransformationMatrix(Entity entity, Matrix4f matrix) {
+        Vector3f rot = entity.getRotation();
+
+        matrix.translation(entity.getPos());
+
+        if (rot.x != 0)
+            matrix.rotateX((float) Math.toRadians(rot.x));
+        if (rot.y != 0)
+            matrix.rotateY((float) Math.toRadians(rot.y));
+        if (rot.z != 0)
+            matrix.rotateZ((float) Math.toRadians(rot.z));
+
+        return matrix.scale(entity.getScale());
     }
 
     public static Matrix4f getViewMatrix(Camera camera) {
+        return getViewMatrix(camera, new Matrix4f());
+    }
+
+    //Writes the view matrix into the given one, for the callers that compute it every frame
+    public static Matrix4f getViewMatrix(Camera camera, Matrix4f matrix) {
         Vector3f pos = camera.getPosition();
         Vector3f rot = camera.getRotation();
 
-        Matrix4f matrix = new Matrix4f();
-        matrix.identity();
-
-        matrix.rotate((float) Math.toRadians(rot.x), new Vector3f(1, 0, 0))
-                .rotate((float) Math.toRadians(rot.y), new Vector3f(0, 1, 0))
-                .rotate((float) Math.toRadians(rot.z), new Vector3f(0, 0, 1));
-        matrix.translate(-pos.x, -pos.y, -pos.z);
-
-        return matrix;
+        return matrix.rotationX((float) Math.toRadians(rot.x))
+                .rotateY((float) Math.toRadians(rot.y))
+                .rotateZ((float) Math.toRadians(rot.z))
+                .translate(-pos.x, -pos.y, -pos.z);
     }
 }
@@ -0,0 +1,162 @@
+package test;
+
+import Kuboid.manager.generation.Chunk;
+import Kuboid.manager.generation.ChunkMesh;
+import Kuboid.manager.generation.MeshBuilder;
+import Kuboid.manager.generation.TerrainGenerator;
+import Kuboid.manager.utils.SimplexNoise;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/*
+ * Generates and meshes a square of chunks without a window or a GL context and prints the throughput, so the cost of
+ * the world generation can be tracked on machines without a display. Every run uses the same seed, the first ones can
+ * be discarded as warm up. Run it with "gradle headless --args='--chunks 16 --seed 42'".
+ *
+ * Options:
+ *  --chunks N    chunks per axis, N x N chunks are generated (8)
+ *  --size N      voxels per side of a chunk (48), at most 255 with packed vertices
+ *  --seed N      seed of the noise (42)
+ *  --runs N      times the whole square is generated and meshed (3)
+ *  --greedy      greedy meshing instead of one quad per face
+ *  --float       float vertices instead of the packed format
+ * */
+public class HeadlessRunner {
+
+    private int chunksPerAxis = 8;
+    private int chunkSize = 48;
+    private long seed = 42;
+    private int runs = 3;
+    private boolean greedy;
+    private boolean packed = true;
+
+    public static void main(String[] args) {
+        HeadlessRunner runner = new HeadlessRunner();
+
+        try {
+            runner.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        runner.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--chunks" -> chunksPerAxis = Integer.parseInt(value(args, ++i));
+                case "--size" -> chunkSize = Integer.parseInt(value(args, ++i));
+                case "--seed" -> seed = Long.parseLong(value(args, ++i));
+                case "--runs" -> runs = Integer.parseInt(value(args, ++i));
+                case "--greedy" -> greedy = true;
+                case "--float" -> packed = false;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (chunksPerAxis <= 0 || chunkSize <= 0 || runs <= 0)
+            throw new IllegalArgumentException("The number of chunks, the chunk size and the runs have to be positive");
+
+        if (packed && chunkSize > ChunkMesh.MAX_PACKED_SIZE)
+            throw new IllegalArgumentException("Chunks bigger than " + ChunkMesh.MAX_PACKED_SIZE + " don't fit in the packed vertex format, use --float");
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+
+        return args[i];
+    }
+
+    private void run() {
+        System.out.printf(Locale.ROOT, "%dx%d chunks of %d, seed %d, %s meshing, %s vertices%n", chunksPerAxis,
+                chunksPerAxis, chunkSize, seed, greedy ? "greedy" : "per face", packed ? "packed" : "float");
+
+        for (int run = 1; run <= runs; run++)
+            runOnce(run);
+    }
+
+    private void runOnce(int run) {
+        SimplexNoise.setSeed(seed);
+        TerrainGenerator generator = new TerrainGenerator(chunkSize, -5);
+        Chunk[][] chunks = new Chunk[chunksPerAxis][chunksPerAxis];
+        int chunkCount = chunksPerAxis * chunksPerAxis;
+
+        System.gc();
+        resetPeakHeap();
+
+        long voxels = 0;
+        long start = System.nanoTime();
+
+        for (int x = 0; x < chunksPerAxis; x++) {
+            for (int z = 0; z < chunksPerAxis; z++) {
+                chunks[x][z] = generator.generateChunk(x, z);
+                voxels += chunks[x][z].getVoxelCount();
+            }
+        }
+
+        long generated = System.nanoTime();
+        long vertices = 0;
+        long vertexBytes = 0;
+        int vertexSize = packed ? MeshBuilder.PACKED_VERTEX_SIZE : MeshBuilder.FLOAT_VERTEX_SIZE;
+
+        //The vertex data lives outside of the heap, it's released as soon as it's counted
+        for (int x = 0; x < chunksPerAxis; x++) {
+            for (int z = 0; z < chunksPerAxis; z++) {
+                ChunkMesh mesh = new ChunkMesh(chunks[x][z], neighbours(chunks, x, z), greedy, packed);
+                vertices += mesh.getVertexCount();
+                vertexBytes += (long) mesh.getVertexCount() * vertexSize;
+                mesh.cleanup();
+            }
+        }
+
+        long meshed = System.nanoTime();
+
+        double generationSeconds = (generated - start) / 1e9;
+        double meshingSeconds = (meshed - generated) / 1e9;
+        double totalSeconds = (meshed - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "run %d: generation %.1f ms (%.1f chunks/s, %.0f voxels/s), meshing %.1f ms " +
+                        "(%.1f chunks/s, %.0f voxels/s), total %.1f chunks/s%n", run, generationSeconds * 1000,
+                chunkCount / generationSeconds, voxels / generationSeconds, meshingSeconds * 1000,
+                chunkCount / meshingSeconds, voxels / meshingSeconds, chunkCount / totalSeconds);
+        System.out.printf(Locale.ROOT, "       %d voxels, %d vertices (%.1f MB), peak heap %.1f MB%n", voxels,
+                vertices, vertexBytes / (1024.0 * 1024.0), getPeakHeap() / (1024.0 * 1024.0));
+    }
+
+    //Chunks around the given one in the order of the ChunkMesh faces, null outside of the square and above and below
+    private Chunk[] neighbours(Chunk[][] chunks, int x, int z) {
+        Chunk[] neighbours = new Chunk[6];
+
+        neighbours[ChunkMesh.PX] = (x + 1 < chunksPerAxis) ? chunks[x + 1][z] : null;
+        neighbours[ChunkMesh.NX] = (x > 0) ? chunks[x - 1][z] : null;
+        neighbours[ChunkMesh.PZ] = (z + 1 < chunksPerAxis) ? chunks[x][z + 1] : null;
+        neighbours[ChunkMesh.NZ] = (z > 0) ? chunks[x][z - 1] : null;
+
+        return neighbours;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    //Sum of the peaks of every heap pool, an upper bound of the peak of the whole heap
+    private static long getPeakHeap() {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+
+        return peak;
+    }
+}
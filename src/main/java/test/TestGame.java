@@ -2,12 +2,15 @@ package test;
 
 import Kuboid.manager.*;
 import Kuboid.manager.generation.Terrain;
+import Kuboid.manager.utils.Profiler;
 import Kuboid.manager.utils.RayCast;
 import Kuboid.manager.utils.Utils;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector3i;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
 import java.util.List;
 
@@ -26,6 +29,8 @@ public class TestGame implements ILogic {
     private Terrain terrain;
     private Camera camera;
     private boolean isWireframe = false;
+    //The profile is only written once per press of the key
+    private boolean profileKeyDown;
 
     Thread thread;
     private Vector3f cameraInc;
@@ -40,7 +45,6 @@ public class TestGame implements ILogic {
 
     @Override
     public void init() throws Exception {
-        renderer.init();
         window.switchWireframe(isWireframe);
 
         //Here we would set the checks for the resizable window
@@ -49,11 +53,11 @@ public class TestGame implements ILogic {
         window.setClearColour(0.529f, 0.807f, 0.921f, 0.0f);
 
         terrain = new Terrain(3, 48, true, isWireframe, camera.getPosition());
+        terrain.initGraphics();
 
-        if (thread != null && thread.isAlive()) {
-            thread.interrupt();
-            terrain.setWireframe(isWireframe);
-        }
+        //The shaders depend on the vertex format of the terrain
+        renderer.setTerrain(terrain);
+        renderer.init();
 
         thread = new Thread(terrain);
         thread.start();
@@ -107,15 +111,31 @@ public class TestGame implements ILogic {
             previousKey = GLFW_KEY_P;
             isWireframe = !isWireframe;
             renderer.setWireframe(isWireframe);
+            //Only the shaders change, the terrain and its uploaded chunks are kept
             renderer.switchRenderer();
-            //Might stop for a couple milliseconds
-            init();
+            window.switchWireframe(isWireframe);
+            terrain.setWireframe(isWireframe);
         }
 
         if (window.isKeyPressed(GLFW_KEY_V)) {
             System.out.println("Camera position: " + camera.getPosition().toString(NumberFormat.getNumberInstance()));
         }
 
+        if (window.isKeyPressed(GLFW_KEY_F2)) {
+            if (!profileKeyDown) {
+                try {
+                    Profiler.dumpCsv(Paths.get("profile.csv"));
+                    System.out.println("Profile written to profile.csv, frame times " + Profiler.getSummary());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            profileKeyDown = true;
+        } else {
+            profileKeyDown = false;
+        }
+
     }
 
     @Override
@@ -186,13 +206,14 @@ public class TestGame implements ILogic {
 
     @Override
     public void render() {
+        terrain.uploadChunks();
         renderer.clear();
         renderer.render(terrain.getTerrain());
     }
 
     @Override
     public void cleanup() {
-        terrain.stopLoop();
+        terrain.cleanup();
         thread.interrupt();
         renderer.cleanup();
         loader.cleanup();
@@ -0,0 +1,8 @@
+#version 400 core
+
+//Only the depth test matters for the occlusion queries, the colour is never written
+out vec4 fragColour;
+
+void main() {
+    fragColour = vec4(1.0);
+}
@@ -1,11 +1,18 @@
 #version 400 core
 
 in vec2 fragTextureCoord;
+in vec2 fragTileOffset;
 
 out vec4 fragColour;
 
 uniform sampler2D textureSampler;
 
+//Size of a tile of the texture atlas (16x16 tiles)
+const float TILE_SIZE = 1.0 / 16.0;
+
 void main() {
-    fragColour = texture(textureSampler, fragTextureCoord);
+    //The texture coordinates are local to the face, repeating them inside the tile allows merged faces to be textured
+    //as a grid of voxels, the derivatives of the unwrapped coordinates avoid the seams on the mipmap selection
+    vec2 tileCoord = fragTileOffset + fract(fragTextureCoord) * TILE_SIZE;
+    fragColour = textureGrad(textureSampler, tileCoord, dFdx(fragTextureCoord * TILE_SIZE), dFdy(fragTextureCoord * TILE_SIZE));
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+#version 400 core
+
+//Corner of a unit cube, scaled and moved to the bounding box by the transformation matrix
+layout (location = 0) in vec3 position;
+
+uniform mat4 transformationMatrix;
+uniform mat4 projectionMatrix;
+uniform mat4 viewMatrix;
+
+void main() {
+    gl_Position = projectionMatrix * viewMatrix * transformationMatrix * vec4(position, 1.0);
+}
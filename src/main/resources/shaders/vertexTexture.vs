@@ -1,16 +1,53 @@
 #version 400 core
 
-in vec3 position;
-in vec2 textureCoord;
+#ifdef PACKED_VERTICES
+layout (location = 0) in uvec2 packedVertex;
+#else
+layout (location = 0) in vec3 position;
+layout (location = 1) in vec2 textureCoord;
+layout (location = 2) in vec2 tileOffset;
+#endif
+
+//Position of the chunk for the batched models (see ModelBatch), (0, 0, 0) for the rest since the array is disabled
+layout (location = 3) in vec3 chunkOffset;
 
 out vec2 fragTextureCoord;
+out vec2 fragTileOffset;
 
 uniform mat4 transformationMatrix;
 uniform mat4 projectionMatrix;
 uniform mat4 viewMatrix;
 
+#ifdef PACKED_VERTICES
+//Size of a tile of the texture atlas (16x16 tiles)
+const float TILE_SIZE = 1.0 / 16.0;
+#endif
 
 void main() {
-    gl_Position = projectionMatrix * viewMatrix * transformationMatrix * vec4(position, 1.0);
+#ifdef PACKED_VERTICES
+    //Corner of the voxel grid in the lower bytes and the face (PX, NX, PY, NY, PZ, NZ) in the highest one
+    vec3 corner = vec3(packedVertex.x & 0xFFu, (packedVertex.x >> 8) & 0xFFu, (packedVertex.x >> 16) & 0xFFu);
+    uint face = (packedVertex.x >> 24) & 0x7u;
+    uint tile = packedVertex.y & 0xFFu;
+
+    //MIN_HEIGHT is defined by RenderManager from Chunk.MIN_HEIGHT, the heights are stored from that layer
+    vec3 position = corner + vec3(-0.5, MIN_HEIGHT - 0.5, -0.5);
+
+    //The uvs follow the plane of the face, the fragment shader only uses their fractional part so the corners of
+    //the grid can be used directly, v goes downwards so the textures of the sides are not flipped
+    vec2 textureCoord;
+
+    if (face < 2u)
+        textureCoord = vec2(corner.z, -corner.y);
+    else if (face < 4u)
+        textureCoord = vec2(corner.x, -corner.z);
+    else
+        textureCoord = vec2(corner.x, -corner.y);
+
+    vec2 tileOffset = vec2(tile % 16u, tile / 16u) * TILE_SIZE;
+#endif
+
+    gl_Position = projectionMatrix * viewMatrix * (transformationMatrix * vec4(position, 1.0) + vec4(chunkOffset, 0.0));
     fragTextureCoord = textureCoord;
-}
\ No newline at end of file
+    fragTileOffset = tileOffset;
+}
@@ -1,6 +1,13 @@
 #version 400 core
 
-in vec3 position;
+#ifdef PACKED_VERTICES
+layout (location = 0) in uvec2 packedVertex;
+#else
+layout (location = 0) in vec3 position;
+#endif
+
+//Position of the chunk for the batched models (see ModelBatch), (0, 0, 0) for the rest since the array is disabled
+layout (location = 3) in vec3 chunkOffset;
 
 out vec3 colour;
 
@@ -9,6 +16,12 @@ uniform mat4 projectionMatrix;
 uniform mat4 viewMatrix;
 
 void main() {
-    gl_Position = projectionMatrix * viewMatrix * transformationMatrix * vec4(position, 1.0);
+#ifdef PACKED_VERTICES
+    //MIN_HEIGHT is defined by RenderManager from Chunk.MIN_HEIGHT, the heights are stored from that layer
+    vec3 corner = vec3(packedVertex.x & 0xFFu, (packedVertex.x >> 8) & 0xFFu, (packedVertex.x >> 16) & 0xFFu);
+    vec3 position = corner + vec3(-0.5, MIN_HEIGHT - 0.5, -0.5);
+#endif
+
+    gl_Position = projectionMatrix * viewMatrix * (transformationMatrix * vec4(position, 1.0) + vec4(chunkOffset, 0.0));
     colour = vec3(1, 1, 1);
-}
\ No newline at end of file
+}
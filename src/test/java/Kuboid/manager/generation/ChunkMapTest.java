@@ -0,0 +1,177 @@
+package Kuboid.manager.generation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkMapTest {
+
+    @Test
+    void putGetAndRemove() {
+        ChunkMap<String> map = new ChunkMap<>();
+
+        assertNull(map.put(ChunkMap.key(1, 2), "a"));
+        assertEquals("a", map.get(1, 2));
+        assertTrue(map.containsKey(ChunkMap.key(1, 2)));
+        assertEquals(1, map.size());
+
+        assertEquals("a", map.put(ChunkMap.key(1, 2), "b"));
+        assertEquals("b", map.get(1, 2));
+        assertEquals(1, map.size());
+
+        assertEquals("b", map.remove(ChunkMap.key(1, 2)));
+        assertNull(map.get(1, 2));
+        assertNull(map.remove(ChunkMap.key(1, 2)));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void nullValuesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ChunkMap<String>().put(0, null));
+    }
+
+    @Test
+    void negativeCoordinates() {
+        ChunkMap<String> map = new ChunkMap<>();
+
+        for (long x = -3; x <= 3; x++) {
+            for (long z = -3; z <= 3; z++)
+                map.put(ChunkMap.key(x, z), x + "," + z);
+        }
+
+        for (long x = -3; x <= 3; x++) {
+            for (long z = -3; z <= 3; z++) {
+                long key = ChunkMap.key(x, z);
+
+                assertEquals(x, ChunkMap.keyX(key));
+                assertEquals(z, ChunkMap.keyZ(key));
+                assertEquals(x + "," + z, map.get(x, z));
+            }
+        }
+
+        //Only the packed key tells (-1, 0) and (0, -1) apart
+        assertNotEquals(map.get(-1, 0), map.get(0, -1));
+        assertEquals(Integer.MIN_VALUE, ChunkMap.keyZ(ChunkMap.key(5, Integer.MIN_VALUE)));
+        assertEquals(Integer.MIN_VALUE, ChunkMap.keyX(ChunkMap.key(Integer.MIN_VALUE, 5)));
+    }
+
+    @Test
+    void removeInsideClusterWrappingAroundTheTable() {
+        int capacity = new ChunkMap<String>().capacity();
+
+        //Keys whose home slot is the last one, together they form a cluster that wraps to the start of the table
+        List<Long> keys = new ArrayList<>();
+
+        for (long key = 0; keys.size() < 4; key++) {
+            ChunkMap<String> probe = new ChunkMap<>();
+            probe.put(key, "probe");
+
+            if (probe.valueAt(capacity - 1) != null)
+                keys.add(key);
+        }
+
+        ChunkMap<String> map = new ChunkMap<>();
+
+        for (long key : keys)
+            map.put(key, Long.toString(key));
+
+        assertEquals(capacity, map.capacity());
+        assertNotNull(map.valueAt(0));
+        assertNotNull(map.valueAt(2));
+
+        //Removing the head of the cluster has to shift the wrapped entries back across the end of the table
+        map.remove(keys.get(0));
+        assertNull(map.get(keys.get(0)));
+
+        for (int i = 1; i < keys.size(); i++)
+            assertEquals(Long.toString(keys.get(i)), map.get(keys.get(i)));
+
+        assertEquals(Long.toString(keys.get(1)), map.valueAt(capacity - 1));
+        assertNull(map.valueAt(2));
+
+        map.remove(keys.get(2));
+
+        for (int i : new int[]{1, 3})
+            assertEquals(Long.toString(keys.get(i)), map.get(keys.get(i)));
+
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void resizeKeepsEveryEntry() {
+        ChunkMap<Long> map = new ChunkMap<>();
+        int initialCapacity = map.capacity();
+
+        for (long x = -20; x < 20; x++) {
+            for (long z = -20; z < 20; z++)
+                map.put(ChunkMap.key(x, z), x * 1000 + z);
+        }
+
+        assertTrue(map.capacity() > initialCapacity);
+        assertEquals(1600, map.size());
+
+        for (long x = -20; x < 20; x++) {
+            for (long z = -20; z < 20; z++)
+                assertEquals(x * 1000 + z, map.get(x, z));
+        }
+    }
+
+    @Test
+    void slotIterationVisitsEveryEntryOnce() {
+        ChunkMap<Long> map = new ChunkMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+
+        for (long x = -10; x < 10; x++) {
+            for (long z = -10; z < 10; z++) {
+                map.put(ChunkMap.key(x, z), x + z);
+                expected.put(ChunkMap.key(x, z), x + z);
+            }
+        }
+
+        Map<Long, Long> visited = new HashMap<>();
+
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            Long value = map.valueAt(slot);
+
+            if (value != null)
+                assertNull(visited.put(map.keyAt(slot), value));
+        }
+
+        assertEquals(expected, visited);
+
+        map.clear();
+        assertEquals(0, map.size());
+
+        for (int slot = 0; slot < map.capacity(); slot++)
+            assertNull(map.valueAt(slot));
+    }
+
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        ChunkMap<Integer> map = new ChunkMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            //A small range of coordinates so the keys are put, replaced and removed many times
+            long key = ChunkMap.key(random.nextInt(64) - 32, random.nextInt(64) - 32);
+
+            switch (random.nextInt(3)) {
+                case 0 -> assertEquals(expected.put(key, i), map.put(key, i));
+                case 1 -> assertEquals(expected.remove(key), map.remove(key));
+                default -> assertEquals(expected.get(key), map.get(key));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Integer> entry : expected.entrySet())
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+}
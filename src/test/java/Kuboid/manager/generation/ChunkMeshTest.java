@@ -0,0 +1,114 @@
+package Kuboid.manager.generation;
+
+import Kuboid.manager.utils.SimplexNoise;
+import Kuboid.manager.voxel.VoxelType;
+import org.joml.Vector3f;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkMeshTest {
+
+    private static final int SIZE = 16;
+
+    @AfterAll
+    static void releaseBuilder() {
+        MeshBuilder.release();
+    }
+
+    //A block of ground with a hollow inside, a tunnel through one side and a floating slab over it
+    private static Chunk createCaveChunk() {
+        Chunk chunk = new Chunk(new Vector3f(0, 0, 0), SIZE);
+
+        for (int y = 0; y < 10; y++) {
+            for (int z = 0; z < SIZE; z++) {
+                for (int x = 0; x < SIZE; x++) {
+                    boolean hollow = x > 3 && x < 12 && z > 3 && z < 12 && y > 2 && y < 7;
+                    boolean tunnel = z == 8 && y == 4 && x < 4;
+
+                    if (!hollow && !tunnel)
+                        chunk.set(x, y, z, y == 9 ? VoxelType.GRASS : VoxelType.DIRT);
+                }
+            }
+        }
+
+        for (int z = 2; z < 7; z++) {
+            for (int x = 5; x < 13; x++)
+                chunk.set(x, 20, z, VoxelType.DIRT);
+        }
+
+        return chunk;
+    }
+
+    @Test
+    void greedyCoversTheSameAreaAsPerFace() {
+        Chunk chunk = createCaveChunk();
+
+        assertArrayEquals(faceAreas(new ChunkMesh(chunk, null, false, true)), faceAreas(new ChunkMesh(chunk, null, true, true)));
+    }
+
+    @Test
+    void greedyCoversTheSameAreaAsPerFaceOnGeneratedTerrain() {
+        SimplexNoise.setSeed(42);
+        TerrainGenerator generator = new TerrainGenerator(SIZE, -5);
+        Chunk chunk = generator.generateChunk(1, 1);
+        Chunk[] neighbours = new Chunk[6];
+
+        neighbours[ChunkMesh.PX] = generator.generateChunk(2, 1);
+        neighbours[ChunkMesh.NX] = generator.generateChunk(0, 1);
+        neighbours[ChunkMesh.PZ] = generator.generateChunk(1, 2);
+
+        long[] perFace = faceAreas(new ChunkMesh(chunk, neighbours, false, true));
+        long[] greedy = faceAreas(new ChunkMesh(chunk, neighbours, true, true));
+
+        assertArrayEquals(perFace, greedy);
+        assertTrue(perFace[ChunkMesh.PY] >= SIZE * SIZE);
+    }
+
+    //Only the lowest voxel of each column loses its bottom face, the ceiling of the hollow and the slab keep theirs
+    @Test
+    void onlyTheFloorOfEachColumnHasNoBottomFace() {
+        long[] areas = faceAreas(new ChunkMesh(createCaveChunk(), null, true, true));
+
+        assertEquals((8 * 8) + 4 + (8 * 5), areas[ChunkMesh.NY]);
+    }
+
+    //Area of the quads of the mesh for each face direction, read back from the packed vertices
+    private static long[] faceAreas(ChunkMesh mesh) {
+        ByteBuffer data = mesh.getVertexData();
+        long[] areas = new long[6];
+
+        for (int quad = 0; quad < mesh.getVertexCount() / MeshBuilder.QUAD_VERTICES; quad++) {
+            int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+            int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            int face = 0;
+
+            for (int corner = 0; corner < MeshBuilder.QUAD_VERTICES; corner++) {
+                int position = data.getInt(((quad * MeshBuilder.QUAD_VERTICES) + corner) * MeshBuilder.PACKED_VERTEX_SIZE);
+                face = (position >>> 24) & 0x7;
+
+                for (int axis = 0; axis < 3; axis++) {
+                    int value = (position >>> (axis * 8)) & 0xFF;
+                    min[axis] = Math.min(min[axis], value);
+                    max[axis] = Math.max(max[axis], value);
+                }
+            }
+
+            long area = 1;
+
+            for (int axis = 0; axis < 3; axis++) {
+                if (axis != face / 2)
+                    area *= max[axis] - min[axis];
+            }
+
+            areas[face] += area;
+        }
+
+        mesh.cleanup();
+
+        return areas;
+    }
+}
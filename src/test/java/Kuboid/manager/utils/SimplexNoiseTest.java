@@ -0,0 +1,44 @@
+package Kuboid.manager.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimplexNoiseTest {
+
+    //The terrain is generated with addNoise, it has to give exactly the heights of the scalar noise
+    @Test
+    void addNoiseMatchesScalarNoise() {
+        SimplexNoise.setSeed(42);
+        double[] frequencies = {0.005, 0.01, 0.1, 0.73};
+        int sizeX = 13, sizeZ = 17;
+
+        for (double frequency : frequencies) {
+            double[] grid = new double[sizeX * sizeZ];
+            SimplexNoise.addNoise(grid, sizeX, sizeZ, -250, 4800, frequency, 0.75);
+
+            for (int x = 0; x < sizeX; x++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    double expected = 0.75 * SimplexNoise.noise(frequency * (-250 + x), frequency * (4800 + z));
+                    assertEquals(expected, grid[(x * sizeZ) + z], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void addNoiseAccumulates() {
+        double[] grid = new double[4 * 4];
+        SimplexNoise.addNoise(grid, 4, 4, 10, 20, 0.1, 1);
+        double[] twice = grid.clone();
+        SimplexNoise.addNoise(twice, 4, 4, 10, 20, 0.1, 1);
+
+        for (int i = 0; i < grid.length; i++)
+            assertEquals(2 * grid[i], twice[i], 1e-12);
+    }
+
+    @Test
+    void addNoiseRejectsSmallGrids() {
+        assertThrows(IllegalArgumentException.class, () -> SimplexNoise.addNoise(new double[8], 3, 3, 0, 0, 0.1, 1));
+    }
+}
@@ -0,0 +1,51 @@
+package Kuboid.manager.utils;
+
+import Kuboid.manager.entity.Entity;
+import Kuboid.manager.model.Model;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TransformationTest {
+
+    private static final int CALLS = 100_000;
+
+    @Test
+    void reusedMatrixMatchesNewMatrix() {
+        Entity entity = new Entity(new Model(0, 0), new Vector3f(48, 2, -96), new Vector3f(30, 0, 90), 2);
+
+        assertEquals(Transformation.createTransformationMatrix(entity),
+                Transformation.createTransformationMatrix(entity, new Matrix4f().rotationY(1)));
+    }
+
+    //The renderer builds the matrix of every entity it draws, on every frame, into the same matrix
+    @Test
+    void reusedMatrixDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        Entity entity = new Entity(new Model(0, 0), new Vector3f(48, 0, -96), new Vector3f(0, 0, 0), 1);
+        Matrix4f matrix = new Matrix4f();
+        long threadId = Thread.currentThread().getId();
+
+        //The first calls load and link the classes involved
+        transform(entity, matrix);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        transform(entity, matrix);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        //Left for the bookkeeping of the measurement itself, far less than one matrix per call
+        assertTrue(allocated < 1024, allocated + " bytes allocated for " + CALLS + " calls");
+    }
+
+    private static void transform(Entity entity, Matrix4f matrix) {
+        for (int i = 0; i < CALLS; i++)
+            Transformation.createTransformationMatrix(entity, matrix);
+    }
+}